@@ -0,0 +1,114 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * ALU-heavy workloads.
+ *
+ * {@link #timeline()} and {@link #run()} execute russian.mima with a large
+ * multiplier, so most executed instructions are ADD, EQL and NOT.
+ *
+ * {@link #lambdaDispatch()} and {@link #switchDispatch()} compare the former
+ * implementation of the ALU, which called one of five lambdas through a
+ * shared interface, with the switch now used by the interpreter on the same
+ * random sequence of operations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AluBenchmark {
+
+    private static final IntBinaryOperator[] LAMBDAS = {
+            Integer::sum, (x,y) -> x&y, (x,y) -> x|y, (x,y) -> x^y, (x,y) -> x==y?-1:0
+    };
+
+    @Param({"10000"})
+    public int multiplier;
+
+    private Interpreter interpreter;
+    private int[] opcodes;
+    private int[] operands;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkSupport.initArgs(Integer.MAX_VALUE);
+        interpreter = new Interpreter();
+        interpreter.parseString(BenchmarkSupport.loadExample("russian"));
+        interpreter.addPresetValue(interpreter.getLabelMap().get("b"), multiplier);
+
+        Random random = new Random(42);
+        opcodes = new int[10_000];
+        operands = new int[opcodes.length];
+        for (int i = 0; i < opcodes.length; i++) {
+            opcodes[i] = 3 + random.nextInt(LAMBDAS.length);
+            operands[i] = random.nextInt(Constants.VALUE_RANGE);
+        }
+    }
+
+    @Benchmark
+    public Timeline timeline() {
+        return interpreter.makeTimeline();
+    }
+
+    @Benchmark
+    public edu.kit.kastel.formal.mimaflux.State run() {
+        return interpreter.run();
+    }
+
+    @Benchmark
+    public int lambdaDispatch() {
+        int accu = 0;
+        for (int i = 0; i < opcodes.length; i++) {
+            accu = LAMBDAS[opcodes[i] - 3].applyAsInt(accu, operands[i]) & Constants.VALUE_MASK;
+        }
+        return accu;
+    }
+
+    @Benchmark
+    public int switchDispatch() {
+        int accu = 0;
+        for (int i = 0; i < opcodes.length; i++) {
+            int op2 = operands[i];
+            switch (opcodes[i]) {
+                case 0x3: accu = (accu + op2) & Constants.VALUE_MASK; break;
+                case 0x4: accu = (accu & op2) & Constants.VALUE_MASK; break;
+                case 0x5: accu = (accu | op2) & Constants.VALUE_MASK; break;
+                case 0x6: accu = (accu ^ op2) & Constants.VALUE_MASK; break;
+                case 0x7: accu = (accu == op2 ? -1 : 0) & Constants.VALUE_MASK; break;
+            }
+        }
+        return accu;
+    }
+}
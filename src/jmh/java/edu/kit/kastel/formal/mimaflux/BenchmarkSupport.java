@@ -0,0 +1,76 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Common setup for the benchmarks.
+ *
+ * The examples directory is on the classpath of the jmh source set, so the
+ * bundled programs can be loaded as resources.
+ */
+final class BenchmarkSupport {
+
+    static final PrintStream NULL_OUT = new PrintStream(OutputStream.nullOutputStream());
+
+    private BenchmarkSupport() {
+    }
+
+    static void initArgs(int maxSteps) {
+        MimaFlux.mmargs = new MimaFluxArgs();
+        MimaFlux.mmargs.maxSteps = maxSteps;
+    }
+
+    static String loadExample(String name) throws IOException {
+        try (InputStream in = BenchmarkSupport.class.getResourceAsStream("/" + name + ".mima")) {
+            if (in == null) {
+                throw new IOException("Example not found: " + name);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * A program of the given number of instructions: a loop summing up
+     * an array of about a third of that size.
+     */
+    static String generateProgram(int size) {
+        int len = Math.max(1, size / 3);
+        StringBuilder sb = new StringBuilder();
+        sb.append("; generated\n");
+        sb.append("len = ").append(len).append('\n');
+        sb.append("sum: DS\ncnt: DS\nptr: DS\none: DS 1\n");
+        sb.append("START: LDC 0\n  STV sum\n  STV cnt\n  LDC arr\n  STV ptr\n");
+        sb.append("loop: LDC len\n  EQL cnt\n  JMN end\n");
+        sb.append("  LDIV ptr\n  ADD sum\n  STV sum\n");
+        sb.append("  LDV ptr\n  ADD one\n  STV ptr\n");
+        sb.append("  LDV cnt\n  ADD one\n  STV cnt\n  JMP loop\n");
+        sb.append("end: HALT\n");
+        int padding = Math.max(0, size - len - 22);
+        for (int i = 0; i < padding; i++) {
+            sb.append("  LDV sum ; unused\n");
+        }
+        sb.append("arr:\n");
+        for (int i = 0; i < len; i++) {
+            sb.append("  DS ").append(i * 7 % 1000).append('\n');
+        }
+        return sb.toString();
+    }
+}
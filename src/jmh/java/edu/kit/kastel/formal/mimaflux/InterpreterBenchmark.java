@@ -0,0 +1,74 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Execution of the bundled examples, with and without recording a timeline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+
+    @Param({"fibonacci", "demo-sort", "russian", "arrayAdd"})
+    public String example;
+
+    private Interpreter interpreter;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkSupport.initArgs(100_000);
+        interpreter = new Interpreter();
+        interpreter.parseString(BenchmarkSupport.loadExample(example));
+    }
+
+    @Benchmark
+    public Timeline makeTimeline() {
+        return interpreter.makeTimeline();
+    }
+
+    @Benchmark
+    public edu.kit.kastel.formal.mimaflux.State run() {
+        return interpreter.run();
+    }
+
+    @Benchmark
+    public edu.kit.kastel.formal.mimaflux.State runCompiled() {
+        MimaFlux.mmargs.compile = true;
+        try {
+            return interpreter.run();
+        } finally {
+            MimaFlux.mmargs.compile = false;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Seeking in a long recorded trace, and loading it from a trace file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimelineBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int steps;
+
+    @Param({"0", "1000"})
+    public int checkpointInterval;
+
+    private Timeline timeline;
+    private Random random;
+    private Path traceFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        BenchmarkSupport.initArgs(steps);
+        MimaFlux.mmargs.checkpointInterval = checkpointInterval;
+        // the program repeats its state, the timeline would end at the first repetition
+        MimaFlux.mmargs.noLoopDetection = true;
+        Interpreter interpreter = new Interpreter();
+        // never terminates, the array is summed up over and over again
+        interpreter.parseString(BenchmarkSupport.generateProgram(300).replace("end: HALT", "end: JMP START"));
+        timeline = interpreter.makeTimeline();
+        random = new Random(42);
+        traceFile = Files.createTempFile("mimaflux", "." + TraceFile.EXTENSION);
+        timeline.save(traceFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        timeline.close();
+        Files.deleteIfExists(traceFile);
+    }
+
+    @Benchmark
+    public int seekForward() {
+        timeline.setPosition(0);
+        timeline.setPosition(timeline.countStates());
+        return timeline.getPosition();
+    }
+
+    @Benchmark
+    public int seekBackward() {
+        timeline.setPosition(timeline.countStates());
+        timeline.setPosition(0);
+        return timeline.getPosition();
+    }
+
+    @Benchmark
+    public int seekRandom() {
+        timeline.setPosition(random.nextInt(timeline.countStates() + 1));
+        return timeline.getPosition();
+    }
+
+    @Benchmark
+    public int stepForwardAndBack() {
+        timeline.addToPosition(1);
+        timeline.addToPosition(-1);
+        return timeline.getPosition();
+    }
+
+    @Benchmark
+    public int loadTrace() throws IOException {
+        Timeline loaded = TraceFile.load(traceFile);
+        int result = loaded.countStates();
+        loaded.close();
+        return result;
+    }
+}
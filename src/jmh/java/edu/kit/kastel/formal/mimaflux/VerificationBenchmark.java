@@ -0,0 +1,85 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verification of russian.mima against a generated test specification.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VerificationBenchmark {
+
+    @Param({"10", "100"})
+    public int testCases;
+
+    private Path programFile;
+    private Path specFile;
+    private PrintStream originalOut;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        BenchmarkSupport.initArgs(100_000);
+        programFile = Files.createTempFile("russian", ".mima");
+        Files.writeString(programFile, BenchmarkSupport.loadExample("russian"));
+        StringBuilder spec = new StringBuilder();
+        for (int i = 0; i < testCases; i++) {
+            int a = i * 13 % 200;
+            int b = i * 7 % 100;
+            spec.append("test").append(i).append(": a=").append(a).append(" b=").append(b)
+                    .append(" ==> c=").append(a * b).append('\n');
+        }
+        specFile = Files.createTempFile("russian", ".spec");
+        Files.writeString(specFile, spec);
+        // verification logs every check
+        originalOut = System.out;
+        System.setOut(BenchmarkSupport.NULL_OUT);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.setOut(originalOut);
+        Files.deleteIfExists(programFile);
+        Files.deleteIfExists(specFile);
+    }
+
+    @Benchmark
+    public int verify() throws IOException {
+        return new MimaVerification().verify(specFile.toString(), programFile.toString());
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The first step in which each memory location has been accessed while a
+ * timeline was recorded, be it by reading, writing or executing it.
+ *
+ * If the initial value of a location changes, all steps before its first
+ * access remain the same. This allows to reuse a prefix of the timeline
+ * when the program has been edited.
+ *
+ * Like the memory in {@link State}, the steps are kept in lazily allocated
+ * pages.
+ */
+public class AccessLog {
+
+    public static final int NEVER = Integer.MAX_VALUE;
+
+    private static final int PAGE_MASK = State.PAGE_SIZE - 1;
+
+    private final int[][] pages = new int[Constants.ADDRESS_RANGE >> State.PAGE_BITS][];
+
+    /**
+     * Record an access in the given step. Steps must not decrease between
+     * calls.
+     */
+    public void access(int addr, int step) {
+        int[] page = pages[addr >> State.PAGE_BITS];
+        if (page == null) {
+            page = new int[State.PAGE_SIZE];
+            Arrays.fill(page, NEVER);
+            pages[addr >> State.PAGE_BITS] = page;
+        }
+        if (page[addr & PAGE_MASK] == NEVER) {
+            page[addr & PAGE_MASK] = step;
+        }
+    }
+
+    /**
+     * @return the step of the first access to addr, or {@link #NEVER}
+     */
+    public int getFirstAccess(int addr) {
+        int[] page = pages[addr >> State.PAGE_BITS];
+        return page == null ? NEVER : page[addr & PAGE_MASK];
+    }
+
+    /**
+     * Forget all accesses in the given step or later.
+     */
+    public void truncate(int step) {
+        for (int[] page : pages) {
+            if (page != null) {
+                for (int i = 0; i < page.length; i++) {
+                    if (page[i] >= step) {
+                        page[i] = NEVER;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the accessed locations with the steps of their first access,
+     * to be read back by {@link #read(ByteBuffer)}.
+     */
+    public void write(DataOutput out) throws IOException {
+        int count = 0;
+        for (int[] page : pages) {
+            if (page != null) {
+                for (int step : page) {
+                    if (step != NEVER) {
+                        count ++;
+                    }
+                }
+            }
+        }
+        out.writeInt(count);
+        for (int i = 0; i < pages.length; i++) {
+            if (pages[i] != null) {
+                for (int j = 0; j < State.PAGE_SIZE; j++) {
+                    if (pages[i][j] != NEVER) {
+                        out.writeInt((i << State.PAGE_BITS) + j);
+                        out.writeInt(pages[i][j]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read what {@link #write(DataOutput)} has written, from a big-endian
+     * buffer.
+     */
+    public static AccessLog read(ByteBuffer in) {
+        AccessLog result = new AccessLog();
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            int addr = in.getInt();
+            result.access(addr, in.getInt());
+        }
+        return result;
+    }
+}
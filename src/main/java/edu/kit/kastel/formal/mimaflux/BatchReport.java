@@ -0,0 +1,146 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+import edu.kit.kastel.formal.mimaflux.MimaVerification.Outcome;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The result matrix of a batch verification: one row per program, one
+ * column per test case.
+ */
+public class BatchReport {
+
+    private record Row(String fileName, List<Outcome> outcomes) {
+        long countPassed() {
+            return outcomes.stream().filter(o -> o == Outcome.PASSED).count();
+        }
+    }
+
+    private final String specFile;
+    private final List<String> testNames;
+    private final List<Row> rows = new ArrayList<>();
+
+    public BatchReport(String specFile, List<String> testNames) {
+        this.specFile = specFile;
+        this.testNames = testNames;
+    }
+
+    public void add(String fileName, List<Outcome> outcomes) {
+        rows.add(new Row(fileName, outcomes));
+    }
+
+    /**
+     * Write the report to the file, as JSON if the name ends in .json,
+     * otherwise as CSV. If fileName is null, CSV is written to stdout.
+     */
+    public void write(String fileName, PrintStream stdout) throws IOException {
+        if (fileName == null) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(stdout, StandardCharsets.UTF_8));
+            writeCsv(out);
+            out.flush();
+            return;
+        }
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(fileName)))) {
+            if (fileName.toLowerCase(Locale.ROOT).endsWith(".json")) {
+                writeJson(out);
+            } else {
+                writeCsv(out);
+            }
+        }
+    }
+
+    public void writeCsv(PrintWriter out) {
+        out.print("file");
+        for (String testName : testNames) {
+            out.print("," + csv(testName));
+        }
+        out.println(",passed,total");
+        for (Row row : rows) {
+            out.print(csv(row.fileName));
+            for (Outcome outcome : row.outcomes) {
+                out.print("," + name(outcome));
+            }
+            out.println("," + row.countPassed() + "," + row.outcomes.size());
+        }
+    }
+
+    public void writeJson(PrintWriter out) {
+        out.println("{");
+        out.println("  \"spec\": " + json(specFile) + ",");
+        out.print("  \"tests\": [");
+        for (int i = 0; i < testNames.size(); i++) {
+            out.print((i > 0 ? ", " : "") + json(testNames.get(i)));
+        }
+        out.println("],");
+        out.println("  \"results\": [");
+        for (int r = 0; r < rows.size(); r++) {
+            Row row = rows.get(r);
+            out.println("    {");
+            out.println("      \"file\": " + json(row.fileName) + ",");
+            out.println("      \"passed\": " + row.countPassed() + ",");
+            out.println("      \"total\": " + row.outcomes.size() + ",");
+            out.print("      \"outcomes\": {");
+            for (int i = 0; i < row.outcomes.size(); i++) {
+                out.print((i > 0 ? ", " : "") + json(testNames.get(i)) + ": " + json(name(row.outcomes.get(i))));
+            }
+            out.println("}");
+            out.println(r < rows.size() - 1 ? "    }," : "    }");
+        }
+        out.println("  ]");
+        out.println("}");
+    }
+
+    private static String name(Outcome outcome) {
+        return outcome.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static String csv(String s) {
+        if (s.contains(",") || s.contains("\"") || s.contains("\n")) {
+            return "\"" + s.replace("\"", "\"\"") + "\"";
+        }
+        return s;
+    }
+
+    private static String json(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,500 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+import edu.kit.kastel.formal.mimaflux.ClassFileWriter.Label;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static edu.kit.kastel.formal.mimaflux.ClassFileWriter.*;
+
+/**
+ * Translates a Mima program into a hidden JVM class.
+ *
+ * Starting from the start address, all reachable instructions of the memory
+ * image are collected and split into basic blocks. Every block becomes a
+ * straight piece of bytecode that keeps IAR and ACCU in local variables and
+ * deducts the length of the block from the step budget when it is entered.
+ * Jumps to constant addresses become jumps in the bytecode, JIND goes through
+ * a switch over all block entries.
+ *
+ * HALT and invalid instructions are not compiled; the interpreter executes
+ * them after the compiled code has been left.
+ */
+public class BytecodeCompiler {
+
+    private static final int MAX_BLOCK_LENGTH = 100;
+
+    private static final String STATE = "edu/kit/kastel/formal/mimaflux/State";
+    private static final String CACHE = "edu/kit/kastel/formal/mimaflux/InstructionCache";
+    private static final String CODE = "edu/kit/kastel/formal/mimaflux/CompiledProgram$Code";
+
+    // local variables of the generated method
+    private static final int L_STATE = 1;
+    private static final int L_CACHE = 2;
+    private static final int L_REGISTERS = 3;
+    private static final int L_COMPILED = 4;
+    private static final int L_IAR = 5;
+    private static final int L_ACCU = 6;
+    private static final int L_BUDGET = 7;
+    private static final int L_TMP = 8;
+    private static final int L_RESULT = 9;
+
+    private final State image;
+    private final int base;
+    private final boolean[] program;
+    private final boolean[] compiled;
+    private final boolean[] entries;
+    private final Label[] labels;
+    private final int[] instructions;
+
+    private ClassFileWriter.Code code;
+    private final Label dispatch = new Label();
+    private final Label exit = new Label();
+
+    private BytecodeCompiler(State image, List<Command> commands) {
+        int min = Integer.MAX_VALUE;
+        int max = -1;
+        for (Command command : commands) {
+            min = Math.min(min, command.address());
+            max = Math.max(max, command.address());
+        }
+        this.image = image;
+        this.base = max < 0 ? 0 : min;
+        int length = max < 0 ? 0 : max - min + 1;
+        this.program = new boolean[length];
+        for (Command command : commands) {
+            program[command.address() - base] = true;
+        }
+        this.compiled = new boolean[length];
+        this.entries = new boolean[length];
+        this.labels = new Label[length];
+        this.instructions = new int[length];
+    }
+
+    /**
+     * Compile the program in the given memory image.
+     *
+     * @param image the memory image of the program
+     * @param commands the commands of the program, only their addresses are
+     *                 considered as code
+     * @param start the address at which execution begins
+     * @return the compiled program, or null if nothing could be compiled
+     */
+    public static CompiledProgram compile(State image, List<Command> commands, int start) {
+        BytecodeCompiler compiler = new BytecodeCompiler(image, commands);
+        compiler.analyse(start);
+        try {
+            byte[] bytes = compiler.generate();
+            if (bytes == null) {
+                return null;
+            }
+            Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            CompiledProgram.Code code = (CompiledProgram.Code)
+                    lookup.lookupClass().getDeclaredConstructor().newInstance();
+            return new CompiledProgram(code, compiler.base, compiler.compiled, compiler.entries);
+        } catch (IllegalStateException e) {
+            MimaFlux.log("Program not compiled: " + e.getMessage());
+            return null;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            MimaFlux.log("Program not compiled: " + e);
+            return null;
+        }
+    }
+
+    private boolean isProgram(int addr) {
+        int index = addr - base;
+        return index >= 0 && index < program.length && program[index];
+    }
+
+    private boolean isCompiled(int addr) {
+        int index = addr - base;
+        return index >= 0 && index < compiled.length && compiled[index];
+    }
+
+    private void markEntry(int addr) {
+        if (isProgram(addr)) {
+            entries[addr - base] = true;
+        }
+    }
+
+    /*
+     * Find the reachable instructions and the block entries.
+     */
+    private void analyse(int start) {
+        Deque<Integer> todo = new ArrayDeque<>();
+        todo.push(start);
+        markEntry(start);
+        while (!todo.isEmpty()) {
+            int addr = todo.pop();
+            if (!isProgram(addr) || isCompiled(addr)) {
+                continue;
+            }
+            int instr = InstructionCache.decode(image.read(addr));
+            int opcode = instr >>> 20;
+            int arg = instr & Constants.ADDRESS_MASK;
+            int next = (addr + 1) & Constants.ADDRESS_MASK;
+            if (opcode == InstructionCache.HALT) {
+                continue;
+            }
+            compiled[addr - base] = true;
+            instructions[addr - base] = instr;
+            switch (opcode) {
+                case 0x8:
+                    markEntry(arg);
+                    todo.push(arg);
+                    break;
+                case 0x9:
+                    markEntry(arg);
+                    markEntry(next);
+                    todo.push(arg);
+                    todo.push(next);
+                    break;
+                case 0xc:
+                    // the return address is reached via JIND
+                    int target = (arg + 1) & Constants.ADDRESS_MASK;
+                    markEntry(target);
+                    markEntry(next);
+                    todo.push(target);
+                    todo.push(next);
+                    break;
+                case 0xd:
+                    break;
+                default:
+                    todo.push(next);
+            }
+        }
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] &= compiled[i];
+        }
+    }
+
+    private byte[] generate() {
+        ClassFileWriter writer = new ClassFileWriter();
+        code = writer.new Code();
+
+        // block starts, as address and length
+        List<int[]> blocks = new ArrayList<>();
+        int i = 0;
+        while (i < compiled.length) {
+            if (!compiled[i]) {
+                i ++;
+                continue;
+            }
+            int length = blockLength(i);
+            blocks.add(new int[] { base + i, length });
+            labels[i] = new Label();
+            i += length;
+            if (length == MAX_BLOCK_LENGTH && i < compiled.length && compiled[i]) {
+                entries[i] = true;
+            }
+        }
+
+        int entryCount = 0;
+        for (i = 0; i < entries.length; i++) {
+            if (entries[i]) {
+                entryCount ++;
+            }
+        }
+        if (entryCount == 0) {
+            return null;
+        }
+
+        code.local(ALOAD, L_REGISTERS);
+        code.pushInt(0);
+        code.op(IALOAD);
+        code.local(ISTORE, L_IAR);
+        code.local(ALOAD, L_REGISTERS);
+        code.pushInt(1);
+        code.op(IALOAD);
+        code.local(ISTORE, L_ACCU);
+        code.local(ALOAD, L_REGISTERS);
+        code.pushInt(2);
+        code.op(IALOAD);
+        code.local(ISTORE, L_BUDGET);
+
+        int[] keys = new int[entryCount];
+        Label[] targets = new Label[entryCount];
+        int k = 0;
+        for (i = 0; i < entries.length; i++) {
+            if (entries[i]) {
+                keys[k] = base + i;
+                targets[k] = labels[i];
+                k ++;
+            }
+        }
+        Label leave = new Label();
+        code.place(dispatch);
+        code.local(ILOAD, L_IAR);
+        code.lookupSwitch(keys, targets, leave);
+        code.place(leave);
+        code.pushInt(0);
+        code.local(ISTORE, L_RESULT);
+        code.jump(GOTO, exit);
+
+        for (int[] block : blocks) {
+            generateBlock(block[0], block[1]);
+        }
+
+        code.place(exit);
+        storeRegister(0, L_IAR);
+        storeRegister(1, L_ACCU);
+        storeRegister(2, L_BUDGET);
+        code.local(ILOAD, L_RESULT);
+        code.op(IRETURN);
+
+        ClassFileWriter.Code init = writer.new Code();
+        init.local(ALOAD, 0);
+        init.invoke(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        init.op(RETURN);
+        writer.addMethod(ACC_PUBLIC, "<init>", "()V", init, 1, 1);
+        writer.addMethod(ACC_PUBLIC, "execute",
+                "(L" + STATE + ";L" + CACHE + ";[I[Z)I", code, 6, L_RESULT + 1);
+        return writer.toByteArray("edu/kit/kastel/formal/mimaflux/CompiledCode", "java/lang/Object", CODE);
+    }
+
+    /*
+     * A block ends at a jump, before an entry or an instruction that is not
+     * compiled, or at the maximum length.
+     */
+    private int blockLength(int index) {
+        int length = 1;
+        while (length < MAX_BLOCK_LENGTH) {
+            int opcode = instructions[index + length - 1] >>> 20;
+            int next = index + length;
+            if (opcode >= 0x8 && opcode <= 0xd && opcode != 0xa && opcode != 0xb
+                    || next >= compiled.length || !compiled[next] || entries[next]) {
+                break;
+            }
+            length ++;
+        }
+        return length;
+    }
+
+    private void storeRegister(int index, int local) {
+        code.local(ALOAD, L_REGISTERS);
+        code.pushInt(index);
+        code.local(ILOAD, local);
+        code.op(IASTORE);
+    }
+
+    private void generateBlock(int start, int length) {
+        code.place(labels[start - base]);
+        // not enough budget for the whole block: leave, the interpreter continues
+        Label enter = new Label();
+        code.local(ILOAD, L_BUDGET);
+        code.pushInt(length);
+        code.jump(IF_ICMPGE, enter);
+        leave(start, 0, 0);
+        code.place(enter);
+        code.iinc(L_BUDGET, -length);
+
+        for (int k = 0; k < length; k++) {
+            int addr = start + k;
+            int instr = instructions[addr - base];
+            int arg = instr & Constants.ADDRESS_MASK;
+            int next = (addr + 1) & Constants.ADDRESS_MASK;
+            // steps not taken if the code is left after this instruction
+            int refund = length - k - 1;
+            switch (instr >>> 20) {
+                case 0x0:
+                    code.pushInt(arg);
+                    code.local(ISTORE, L_ACCU);
+                    break;
+                case 0x1:
+                    read(arg);
+                    code.local(ISTORE, L_ACCU);
+                    break;
+                case 0x2:
+                    code.local(ALOAD, L_STATE);
+                    code.pushInt(arg);
+                    code.local(ILOAD, L_ACCU);
+                    write(arg, next, refund);
+                    break;
+                case 0x3: alu(arg, IADD); break;
+                case 0x4: alu(arg, IAND); break;
+                case 0x5: alu(arg, IOR); break;
+                case 0x6: alu(arg, IXOR); break;
+                case 0x7: {
+                    Label different = new Label();
+                    Label done = new Label();
+                    code.local(ILOAD, L_ACCU);
+                    read(arg);
+                    code.jump(IF_ICMPNE, different);
+                    code.pushInt(Constants.VALUE_MASK);
+                    code.jump(GOTO, done);
+                    code.place(different);
+                    code.pushInt(0);
+                    code.place(done);
+                    code.local(ISTORE, L_ACCU);
+                    break;
+                }
+                case 0x8:
+                    jumpTo(arg, refund);
+                    break;
+                case 0x9: {
+                    Label notTaken = new Label();
+                    code.local(ILOAD, L_ACCU);
+                    code.pushInt(Constants.SIGNBIT);
+                    code.op(IAND);
+                    code.jump(IFEQ, notTaken);
+                    jumpTo(arg, refund);
+                    code.place(notTaken);
+                    break;
+                }
+                case 0xa:
+                    code.local(ALOAD, L_STATE);
+                    read(arg);
+                    code.pushInt(Constants.ADDRESS_MASK);
+                    code.op(IAND);
+                    code.invoke(INVOKEVIRTUAL, STATE, "read", "(I)I");
+                    code.local(ISTORE, L_ACCU);
+                    break;
+                case 0xb:
+                    read(arg);
+                    code.pushInt(Constants.ADDRESS_MASK);
+                    code.op(IAND);
+                    code.local(ISTORE, L_TMP);
+                    code.local(ALOAD, L_STATE);
+                    code.local(ILOAD, L_TMP);
+                    code.local(ILOAD, L_ACCU);
+                    code.invoke(INVOKEVIRTUAL, STATE, "write", "(II)V");
+                    code.local(ALOAD, L_CACHE);
+                    code.local(ILOAD, L_TMP);
+                    code.invoke(INVOKEVIRTUAL, CACHE, "invalidate", "(I)V");
+                    checkModified(next, refund);
+                    break;
+                case 0xc:
+                    code.local(ALOAD, L_STATE);
+                    code.pushInt(arg);
+                    code.pushInt(addr + 1);
+                    write(arg, (arg + 1) & Constants.ADDRESS_MASK, refund);
+                    jumpTo((arg + 1) & Constants.ADDRESS_MASK, refund);
+                    break;
+                case 0xd:
+                    read(arg);
+                    code.pushInt(Constants.ADDRESS_MASK);
+                    code.op(IAND);
+                    code.local(ISTORE, L_IAR);
+                    if (refund > 0) {
+                        code.iinc(L_BUDGET, refund);
+                    }
+                    code.jump(GOTO, dispatch);
+                    break;
+                case InstructionCache.NOT:
+                    code.local(ILOAD, L_ACCU);
+                    code.pushInt(-1);
+                    code.op(IXOR);
+                    code.pushInt(Constants.VALUE_MASK);
+                    code.op(IAND);
+                    code.local(ISTORE, L_ACCU);
+                    break;
+                case InstructionCache.RAR:
+                    code.local(ILOAD, L_ACCU);
+                    code.pushInt(1);
+                    code.op(ISHR);
+                    code.local(ILOAD, L_ACCU);
+                    code.pushInt(1);
+                    code.op(IAND);
+                    code.pushInt(Constants.VALUE_WIDTH - 1);
+                    code.op(ISHL);
+                    code.op(IOR);
+                    code.local(ISTORE, L_ACCU);
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected instruction " + instr);
+            }
+        }
+
+        int last = instructions[start + length - 1 - base] >>> 20;
+        if (last != 0x8 && last != 0xc && last != 0xd) {
+            jumpTo((start + length) & Constants.ADDRESS_MASK, 0);
+        }
+    }
+
+    // pushes the value at the constant address
+    private void read(int addr) {
+        code.local(ALOAD, L_STATE);
+        code.pushInt(addr);
+        code.invoke(INVOKEVIRTUAL, STATE, "read", "(I)I");
+    }
+
+    private void alu(int arg, int opcode) {
+        code.local(ILOAD, L_ACCU);
+        read(arg);
+        code.op(opcode);
+        code.pushInt(Constants.VALUE_MASK);
+        code.op(IAND);
+        code.local(ISTORE, L_ACCU);
+    }
+
+    // state, address and value are on the stack
+    private void write(int addr, int next, int refund) {
+        code.invoke(INVOKEVIRTUAL, STATE, "write", "(II)V");
+        code.local(ALOAD, L_CACHE);
+        code.pushInt(addr);
+        code.invoke(INVOKEVIRTUAL, CACHE, "invalidate", "(I)V");
+        if (isCompiled(addr)) {
+            leave(next, refund, CompiledProgram.MODIFIED);
+        }
+    }
+
+    // the address written to is in L_TMP
+    private void checkModified(int next, int refund) {
+        Label unmodified = new Label();
+        code.local(ILOAD, L_TMP);
+        code.pushInt(base);
+        code.op(ISUB);
+        code.local(ISTORE, L_TMP);
+        code.local(ILOAD, L_TMP);
+        code.jump(IFLT, unmodified);
+        code.local(ILOAD, L_TMP);
+        code.pushInt(compiled.length);
+        code.jump(IF_ICMPGE, unmodified);
+        code.local(ALOAD, L_COMPILED);
+        code.local(ILOAD, L_TMP);
+        code.op(BALOAD);
+        code.jump(IFEQ, unmodified);
+        leave(next, refund, CompiledProgram.MODIFIED);
+        code.place(unmodified);
+    }
+
+    private void jumpTo(int target, int refund) {
+        if (isCompiled(target)) {
+            if (refund > 0) {
+                code.iinc(L_BUDGET, refund);
+            }
+            code.jump(GOTO, labels[target - base]);
+        } else {
+            leave(target, refund, 0);
+        }
+    }
+
+    private void leave(int iar, int refund, int result) {
+        code.pushInt(iar);
+        code.local(ISTORE, L_IAR);
+        if (refund > 0) {
+            code.iinc(L_BUDGET, refund);
+        }
+        code.pushInt(result);
+        code.local(ISTORE, L_RESULT);
+        code.jump(GOTO, exit);
+    }
+}
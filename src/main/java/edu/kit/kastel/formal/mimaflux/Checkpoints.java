@@ -0,0 +1,321 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshots of the machine state taken every {@link #getInterval()} steps
+ * while a timeline is recorded.
+ *
+ * A timeline can jump to an arbitrary step by restoring the closest snapshot
+ * and replaying at most half an interval of updates from there.
+ *
+ * Memory is snapshotted in pages of {@link #PAGE_SIZE} words. Only pages that
+ * have been written to are kept, and a page that did not change since the
+ * previous snapshot is shared with it (copy-on-write).
+ */
+public class Checkpoints {
+
+    public static final int PAGE_BITS = 6;
+    public static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private record Snapshot(int iar, int accu, int[][] pages) {
+    }
+
+    private final int interval;
+    private final List<Snapshot> snapshots = new ArrayList<>();
+
+    // for every page number: its index in touchedPages, or -1
+    private final int[] pageIndex;
+
+    // pages written to so far, in the order of their first modification
+    private int[] touchedPages = new int[16];
+    private int touchedCount;
+
+    // contents of the touched pages before their first modification
+    private int[][] initialPages = new int[16][];
+
+    // copies taken by the last snapshot, and whether they are outdated
+    private int[][] lastCopies = new int[16][];
+    private boolean[] dirty = new boolean[16];
+
+    private long copiedPages;
+
+    public Checkpoints(int interval) {
+        this.interval = interval;
+        this.pageIndex = new int[interval > 0 ? Constants.ADDRESS_RANGE >> PAGE_BITS : 0];
+        Arrays.fill(pageIndex, -1);
+    }
+
+    /**
+     * Needs to be called before the memory at address addr is modified.
+     */
+    public void touch(int addr, State state) {
+        if (interval <= 0 || addr < 0) {
+            return;
+        }
+        int page = addr >> PAGE_BITS;
+        int idx = pageIndex[page];
+        if (idx < 0) {
+            idx = touchedCount++;
+            if (idx == touchedPages.length) {
+                int newLength = idx * 2;
+                touchedPages = Arrays.copyOf(touchedPages, newLength);
+                initialPages = Arrays.copyOf(initialPages, newLength);
+                lastCopies = Arrays.copyOf(lastCopies, newLength);
+                dirty = Arrays.copyOf(dirty, newLength);
+            }
+            pageIndex[page] = idx;
+            touchedPages[idx] = page;
+            initialPages[idx] = copyPage(page, state);
+        }
+        dirty[idx] = true;
+    }
+
+    /**
+     * Records the current state as the checkpoint for the next multiple
+     * of the interval.
+     */
+    public void take(State state) {
+        if (interval <= 0) {
+            return;
+        }
+        int[][] pages = new int[touchedCount][];
+        for (int i = 0; i < touchedCount; i++) {
+            if (dirty[i] || lastCopies[i] == null) {
+                lastCopies[i] = copyPage(touchedPages[i], state);
+                dirty[i] = false;
+            }
+            pages[i] = lastCopies[i];
+        }
+        snapshots.add(new Snapshot(state.get(State.IAR), state.get(State.ACCU), pages));
+    }
+
+    private int[] copyPage(int page, State state) {
+        int[] result = new int[PAGE_SIZE];
+        state.copyTo(page << PAGE_BITS, result);
+        copiedPages ++;
+        return result;
+    }
+
+    /**
+     * Find the step of the checkpoint closest to the given position.
+     *
+     * @return the step number of a checkpoint, or -1 if there is none
+     */
+    public int closestTo(int position) {
+        if (snapshots.isEmpty()) {
+            return -1;
+        }
+        int lower = Math.min(position / interval, snapshots.size() - 1);
+        int upper = lower + 1;
+        if (upper < snapshots.size() && upper * interval - position < position - lower * interval) {
+            return upper * interval;
+        }
+        return lower * interval;
+    }
+
+    /**
+     * Bring the state back to the checkpoint at the given step. Every
+     * location whose value differs is reported to the listener which is
+     * responsible for updating the state.
+     */
+    public void restore(int step, State state, UpdateListener listener) {
+        Snapshot snapshot = snapshots.get(step / interval);
+        for (int i = 0; i < touchedCount; i++) {
+            int[] page = i < snapshot.pages.length ? snapshot.pages[i] : initialPages[i];
+            int base = touchedPages[i] << PAGE_BITS;
+            for (int j = 0; j < PAGE_SIZE; j++) {
+                if (state.get(base + j) != page[j]) {
+                    listener.memoryChanged(base + j, page[j]);
+                }
+            }
+        }
+        if (state.get(State.ACCU) != snapshot.accu) {
+            listener.memoryChanged(State.ACCU, snapshot.accu);
+        }
+        if (state.get(State.IAR) != snapshot.iar) {
+            listener.memoryChanged(State.IAR, snapshot.iar);
+        }
+    }
+
+    /**
+     * Remove the checkpoints after the given step, such that recording can
+     * continue from there.
+     */
+    public void truncate(int step) {
+        if (interval <= 0) {
+            return;
+        }
+        while (snapshots.size() > step / interval + 1) {
+            snapshots.remove(snapshots.size() - 1);
+        }
+        // the live state may differ from the last copies by now
+        Arrays.fill(lastCopies, null);
+    }
+
+    /**
+     * Change the value of a memory location in all snapshots and in the
+     * initial contents of the pages. Used if the initial value of a location
+     * has changed that has not been accessed until the last snapshot.
+     */
+    public void patch(int addr, int value) {
+        if (interval <= 0) {
+            return;
+        }
+        int idx = pageIndex[addr >> PAGE_BITS];
+        if (idx < 0) {
+            return;
+        }
+        int offset = addr & (PAGE_SIZE - 1);
+        initialPages[idx][offset] = value;
+        for (Snapshot snapshot : snapshots) {
+            if (idx < snapshot.pages.length) {
+                snapshot.pages[idx][offset] = value;
+            }
+        }
+    }
+
+    /**
+     * Write the snapshots, in the format read by {@link #read(ByteBuffer)}:
+     * the interval, the touched pages with their initial contents, the page
+     * copies, and for every snapshot the IAR, the ACCU and the indices of its
+     * copies. A copy shared by several snapshots is written once.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(interval);
+        out.writeInt(touchedCount);
+        for (int i = 0; i < touchedCount; i++) {
+            out.writeInt(touchedPages[i]);
+            writePage(out, initialPages[i]);
+        }
+
+        Map<int[], Integer> copyIndex = new IdentityHashMap<>();
+        List<int[]> copies = new ArrayList<>();
+        for (Snapshot snapshot : snapshots) {
+            for (int[] page : snapshot.pages) {
+                if (!copyIndex.containsKey(page)) {
+                    copyIndex.put(page, copies.size());
+                    copies.add(page);
+                }
+            }
+        }
+        out.writeInt(copies.size());
+        for (int[] page : copies) {
+            writePage(out, page);
+        }
+
+        out.writeInt(snapshots.size());
+        for (Snapshot snapshot : snapshots) {
+            out.writeInt(snapshot.iar);
+            out.writeInt(snapshot.accu);
+            out.writeInt(snapshot.pages.length);
+            for (int[] page : snapshot.pages) {
+                out.writeInt(copyIndex.get(page));
+            }
+        }
+    }
+
+    private static void writePage(DataOutput out, int[] page) throws IOException {
+        for (int value : page) {
+            out.writeInt(value);
+        }
+    }
+
+    /**
+     * Read what {@link #write(DataOutput)} has written, from a big-endian
+     * buffer. No further snapshots can be taken.
+     *
+     * @throws IOException if the snapshots are inconsistent
+     */
+    public static Checkpoints read(ByteBuffer in) throws IOException {
+        Checkpoints result = new Checkpoints(in.getInt());
+        int touched = in.getInt();
+        if (touched > 0 && result.interval <= 0) {
+            throw new IOException("Corrupt checkpoints");
+        }
+        int length = Math.max(16, touched);
+        result.touchedPages = new int[length];
+        result.initialPages = new int[length][];
+        result.lastCopies = new int[length][];
+        result.dirty = new boolean[length];
+        for (int i = 0; i < touched; i++) {
+            int page = in.getInt();
+            if (result.pageIndex[page] >= 0) {
+                throw new IOException("Corrupt checkpoints");
+            }
+            result.pageIndex[page] = i;
+            result.touchedPages[i] = page;
+            result.initialPages[i] = readPage(in);
+        }
+        result.touchedCount = touched;
+
+        int[][] copies = new int[in.getInt()][];
+        for (int i = 0; i < copies.length; i++) {
+            copies[i] = readPage(in);
+        }
+        result.copiedPages = touched + copies.length;
+
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            int iar = in.getInt();
+            int accu = in.getInt();
+            int[][] pages = new int[in.getInt()][];
+            if (pages.length > touched) {
+                throw new IOException("Corrupt checkpoints");
+            }
+            for (int j = 0; j < pages.length; j++) {
+                pages[j] = copies[in.getInt()];
+            }
+            result.snapshots.add(new Snapshot(iar, accu, pages));
+        }
+        return result;
+    }
+
+    private static int[] readPage(ByteBuffer in) {
+        int[] page = new int[PAGE_SIZE];
+        in.asIntBuffer().get(page);
+        in.position(in.position() + 4 * PAGE_SIZE);
+        return page;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public int size() {
+        return snapshots.size();
+    }
+
+    /**
+     * Approximate number of bytes occupied by the snapshots.
+     */
+    public long getByteSize() {
+        long pageBytes = 16 + 4L * PAGE_SIZE;
+        long tableBytes = 0;
+        for (Snapshot snapshot : snapshots) {
+            tableBytes += 32 + 16 + 4L * snapshot.pages.length;
+        }
+        return copiedPages * pageBytes + tableBytes + 4L * pageIndex.length;
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal writer for JVM class files, just enough for the classes
+ * generated by {@link BytecodeCompiler}.
+ *
+ * Class files are written in version 49 (Java 5) which is verified by type
+ * inference, so no stack map frames need to be computed.
+ */
+class ClassFileWriter {
+
+    private static final int VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // opcodes used by the compiler
+    static final int ICONST_0 = 0x03;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int IALOAD = 0x2e;
+    static final int BALOAD = 0x33;
+    static final int ISTORE = 0x36;
+    static final int IASTORE = 0x4f;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int ISHL = 0x78;
+    static final int ISHR = 0x7a;
+    static final int IAND = 0x7e;
+    static final int IOR = 0x80;
+    static final int IXOR = 0x82;
+    static final int IINC = 0x84;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ICMPLT = 0xa1;
+    static final int IF_ICMPGE = 0xa2;
+    static final int GOTO = 0xa7;
+    static final int LOOKUPSWITCH = 0xab;
+    static final int IRETURN = 0xac;
+    static final int RETURN = 0xb1;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int GOTO_W = 0xc8;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final List<byte[]> methods = new ArrayList<>();
+
+    /**
+     * A position in the code of a method. Labels can be used in jumps
+     * before they are placed.
+     */
+    static class Label {
+        private int position = -1;
+    }
+
+    private record Fixup(int instruction, int position, Label label, boolean wide) {
+    }
+
+    /**
+     * The bytecode of a single method.
+     */
+    class Code {
+        private byte[] bytes = new byte[256];
+        private int size;
+        private final List<Fixup> fixups = new ArrayList<>();
+
+        void op(int opcode) {
+            u1(opcode);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(ICONST_0 + value);
+            } else if (value == (byte) value) {
+                u1(0x10);
+                u1(value);
+            } else if (value == (short) value) {
+                u1(0x11);
+                u2(value);
+            } else {
+                int index = constInt(value);
+                if (index < 256) {
+                    u1(0x12);
+                    u1(index);
+                } else {
+                    u1(0x13);
+                    u2(index);
+                }
+            }
+        }
+
+        void local(int opcode, int index) {
+            u1(opcode);
+            u1(index);
+        }
+
+        void iinc(int index, int delta) {
+            if (delta == (byte) delta) {
+                u1(IINC);
+                u1(index);
+                u1(delta);
+            } else {
+                u1(0xc4);
+                u1(IINC);
+                u2(index);
+                u2(delta);
+            }
+        }
+
+        // unconditional jumps are always wide, conditional jumps must be short
+        void jump(int opcode, Label label) {
+            int instruction = size;
+            if (opcode == GOTO) {
+                u1(GOTO_W);
+                fixups.add(new Fixup(instruction, size, label, true));
+                u4(0);
+            } else {
+                u1(opcode);
+                fixups.add(new Fixup(instruction, size, label, false));
+                u2(0);
+            }
+        }
+
+        void lookupSwitch(int[] keys, Label[] targets, Label defaultLabel) {
+            int instruction = size;
+            u1(LOOKUPSWITCH);
+            while (size % 4 != 0) {
+                u1(0);
+            }
+            fixups.add(new Fixup(instruction, size, defaultLabel, true));
+            u4(0);
+            u4(keys.length);
+            Integer[] order = new Integer[keys.length];
+            Arrays.setAll(order, i -> i);
+            Arrays.sort(order, (a, b) -> Integer.compare(keys[a], keys[b]));
+            for (int i : order) {
+                u4(keys[i]);
+                fixups.add(new Fixup(instruction, size, targets[i], true));
+                u4(0);
+            }
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            u1(opcode);
+            u2(methodRef(owner, name, descriptor));
+        }
+
+        void place(Label label) {
+            label.position = size;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void u1(int value) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        private void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        private void u4(int value) {
+            u2(value >> 16);
+            u2(value);
+        }
+
+        private byte[] resolve() {
+            for (Fixup fixup : fixups) {
+                if (fixup.label.position < 0) {
+                    throw new IllegalStateException("Unplaced label");
+                }
+                int offset = fixup.label.position - fixup.instruction;
+                if (fixup.wide) {
+                    for (int i = 0; i < 4; i++) {
+                        bytes[fixup.position + i] = (byte) (offset >> (24 - 8 * i));
+                    }
+                } else {
+                    if (offset != (short) offset) {
+                        throw new IllegalStateException("Method too large");
+                    }
+                    bytes[fixup.position] = (byte) (offset >> 8);
+                    bytes[fixup.position + 1] = (byte) offset;
+                }
+            }
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    /**
+     * Add a method with the given code to the class.
+     *
+     * @throws IllegalStateException if the code exceeds the limits of the
+     *                               class file format
+     */
+    void addMethod(int access, String name, String descriptor, Code code, int maxStack, int maxLocals) {
+        byte[] bytes = code.resolve();
+        if (bytes.length >= 0xffff) {
+            throw new IllegalStateException("Method too large");
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(result);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + bytes.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        methods.add(result.toByteArray());
+    }
+
+    byte[] toByteArray(String name, String superName, String... interfaces) {
+        int thisIndex = classRef(name);
+        int superIndex = classRef(superName);
+        int[] interfaceIndices = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceIndices[i] = classRef(interfaces[i]);
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(result);
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(interfaceIndices.length);
+            for (int index : interfaceIndices) {
+                out.writeShort(index);
+            }
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result.toByteArray();
+    }
+
+    private int utf8(String value) {
+        Integer index = poolIndex.get("U" + value);
+        if (index == null) {
+            index = newEntry("U" + value);
+            try {
+                poolOut.writeByte(1);
+                poolOut.writeUTF(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return index;
+    }
+
+    private int classRef(String name) {
+        return entry("C" + name, 7, utf8(name), -1);
+    }
+
+    private int methodRef(String owner, String name, String descriptor) {
+        int nameAndType = entry("N" + name + " " + descriptor, 12, utf8(name), utf8(descriptor));
+        return entry("M" + owner + "." + name + descriptor, 10, classRef(owner), nameAndType);
+    }
+
+    private int constInt(int value) {
+        Integer index = poolIndex.get("I" + value);
+        if (index == null) {
+            index = newEntry("I" + value);
+            try {
+                poolOut.writeByte(3);
+                poolOut.writeInt(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return index;
+    }
+
+    // an entry with one or two references to other entries
+    private int entry(String key, int tag, int ref1, int ref2) {
+        Integer index = poolIndex.get(key);
+        if (index == null) {
+            index = newEntry(key);
+            try {
+                poolOut.writeByte(tag);
+                poolOut.writeShort(ref1);
+                if (ref2 >= 0) {
+                    poolOut.writeShort(ref2);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return index;
+    }
+
+    private int newEntry(String key) {
+        if (poolCount == 0xffff) {
+            throw new IllegalStateException("Constant pool too large");
+        }
+        int index = poolCount++;
+        poolIndex.put(key, index);
+        return index;
+    }
+}
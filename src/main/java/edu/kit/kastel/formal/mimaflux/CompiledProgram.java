@@ -0,0 +1,88 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+import java.util.Collection;
+
+/**
+ * A Mima program translated to JVM bytecode by {@link BytecodeCompiler}.
+ *
+ * Only the instructions reachable from the start of the program are
+ * compiled. Execution can enter the compiled code at the first instruction
+ * of each basic block ({@link #isEntry(int)}); it leaves it when the step
+ * budget is exhausted, when control reaches an instruction that is not
+ * compiled, or when the program writes to its own compiled code.
+ */
+public class CompiledProgram {
+
+    /**
+     * The interface implemented by the generated class.
+     *
+     * The registers array holds IAR, ACCU and the remaining number of steps
+     * and is updated when the compiled code is left. The result is
+     * {@link #MODIFIED} if the code has been overwritten, 0 otherwise.
+     * The last argument is the array {@link #compiled}.
+     */
+    public interface Code {
+        int execute(State state, InstructionCache cache, int[] registers, boolean[] compiled);
+    }
+
+    static final int MODIFIED = 1;
+
+    private final Code code;
+    private final int base;
+    private final boolean[] compiled;
+    private final boolean[] entries;
+
+    CompiledProgram(Code code, int base, boolean[] compiled, boolean[] entries) {
+        this.code = code;
+        this.base = base;
+        this.compiled = compiled;
+        this.entries = entries;
+    }
+
+    public boolean isEntry(int addr) {
+        int index = addr - base;
+        return index >= 0 && index < entries.length && entries[index];
+    }
+
+    public boolean isCompiled(int addr) {
+        int index = addr - base;
+        return index >= 0 && index < compiled.length && compiled[index];
+    }
+
+    /**
+     * Check whether any of the given addresses holds compiled code.
+     */
+    public boolean overlaps(Collection<Integer> addresses) {
+        for (int addr : addresses) {
+            if (isCompiled(addr)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Execute compiled code starting at an entry point.
+     *
+     * @param registers IAR, ACCU and the maximum number of steps; updated on return
+     * @return false if the program has overwritten its compiled code, which
+     * must not be used any more then
+     */
+    public boolean execute(State state, InstructionCache cache, int[] registers) {
+        return code.execute(state, cache, registers, compiled) != MODIFIED;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Events for the JDK Flight Recorder, e.g., to see where the time goes
+ * when grading many programs. Start the JVM with
+ * {@code -XX:StartFlightRecording=filename=mimaflux.jfr} to record them.
+ *
+ * Events that are not enabled cost next to nothing.
+ */
+final class Events {
+
+    private static final String CATEGORY = "MimaFlux";
+
+    // the steps executed since the last throughput event
+    private static final LongAdder steps = new LongAdder();
+    private static long lastThroughput = System.nanoTime();
+
+    static {
+        FlightRecorder.addPeriodicEvent(Throughput.class, Events::emitThroughput);
+    }
+
+    private Events() {
+        throw new Error();
+    }
+
+    @Name("edu.kit.kastel.formal.mimaflux.Parse")
+    @Label("Parse Program")
+    @Category(CATEGORY)
+    static class Parse extends Event {
+        @Label("Program")
+        String program;
+
+        @Label("Commands")
+        int commands;
+
+        @Label("Labels")
+        int labels;
+    }
+
+    @Name("edu.kit.kastel.formal.mimaflux.Execute")
+    @Label("Execute Program")
+    @Description("Recording a timeline or running a program without recording")
+    @Category(CATEGORY)
+    static class Execute extends Event {
+        @Label("Program")
+        String program;
+
+        @Label("Recorded")
+        boolean recorded;
+
+        @Label("Steps")
+        int steps;
+
+        @Label("Reused Steps")
+        @Description("Steps taken over from the timeline of the program before it was edited")
+        int reusedSteps;
+
+        @Label("Updates")
+        long updates;
+
+        @Label("Trace Size")
+        @DataAmount
+        long traceBytes;
+    }
+
+    @Name("edu.kit.kastel.formal.mimaflux.Seek")
+    @Label("Seek")
+    @Description("Changing the position of a timeline")
+    @Category(CATEGORY)
+    static class Seek extends Event {
+        @Label("From")
+        int from;
+
+        @Label("To")
+        int to;
+
+        @Label("Updates Applied")
+        @Description("Updates applied from the trace, restoring a checkpoint is not counted")
+        long updates;
+    }
+
+    @Name("edu.kit.kastel.formal.mimaflux.Verify")
+    @Label("Verify Test Case")
+    @Category(CATEGORY)
+    static class Verify extends Event {
+        @Label("Program")
+        String program;
+
+        @Label("Test Case")
+        String testCase;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("edu.kit.kastel.formal.mimaflux.Throughput")
+    @Label("Throughput")
+    @Description("Steps executed by all interpreters since the last event")
+    @Category(CATEGORY)
+    @Period("1 s")
+    static class Throughput extends Event {
+        @Label("Steps")
+        long steps;
+
+        @Label("Steps per Second")
+        double stepsPerSecond;
+    }
+
+    /**
+     * Count executed steps for the throughput events. Need not be called
+     * for every single step.
+     */
+    static void stepsExecuted(long count) {
+        steps.add(count);
+    }
+
+    private static synchronized void emitThroughput() {
+        long now = System.nanoTime();
+        Throughput event = new Throughput();
+        event.steps = steps.sumThenReset();
+        event.stepsPerSecond = event.steps * 1e9 / Math.max(1, now - lastThroughput);
+        event.commit();
+        lastThroughput = now;
+    }
+}
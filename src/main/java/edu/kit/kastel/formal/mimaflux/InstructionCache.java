@@ -0,0 +1,152 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decoded instructions for the address range occupied by the program.
+ *
+ * A decoded instruction has the form {@code (opcode << 20) | argument}
+ * where the opcodes 0x0 to 0xd are the ones of the Mima and the instructions
+ * with the extended opcode 0xf are mapped to {@link #HALT}, {@link #NOT} and
+ * {@link #RAR}. Everything that is not a valid instruction is decoded to
+ * {@link #HALT} since the machine stops on it.
+ *
+ * Frequent sequences of three instructions are fused into superinstructions:
+ * LDV or LDC, followed by an ALU instruction (ADD to EQL), followed by STV or
+ * JMN. The decoded superinstruction carries the argument of the first
+ * instruction; the other two can be obtained by {@link #peek(int, State)}. Bit 0 of
+ * the fused opcode distinguishes LDC from LDV, bit 1 JMN from STV.
+ *
+ * Since Mima programs may modify themselves, every write to memory has to be
+ * reported via {@link #invalidate(int)}. Instructions outside the program
+ * range are decoded every time they are fetched and never fused.
+ */
+public class InstructionCache {
+
+    public static final int HALT = 0x10;
+    public static final int NOT = 0x11;
+    public static final int RAR = 0x12;
+
+    public static final int FUSED_LDV_STV = 0x14;
+    public static final int FUSED_LDC_STV = 0x15;
+    public static final int FUSED_LDV_JMN = 0x16;
+    public static final int FUSED_LDC_JMN = 0x17;
+
+    /**
+     * Number of steps executed by a superinstruction.
+     */
+    public static final int FUSED_LENGTH = 3;
+
+    private static final int UNDECODED = -1;
+
+    private final int base;
+    private final int[] decoded;
+
+    public InstructionCache(List<Command> commands) {
+        int min = Integer.MAX_VALUE;
+        int max = -1;
+        for (Command command : commands) {
+            min = Math.min(min, command.address());
+            max = Math.max(max, command.address());
+        }
+        this.base = max < 0 ? 0 : min;
+        this.decoded = new int[max < 0 ? 0 : max - min + 1];
+        Arrays.fill(decoded, UNDECODED);
+    }
+
+    /**
+     * Fetch and decode the instruction at the given address.
+     */
+    public int fetch(int addr, State state) {
+        int index = addr - base;
+        if (index >= 0 && index < decoded.length) {
+            int result = decoded[index];
+            if (result == UNDECODED) {
+                result = decode(state.read(addr));
+                if (index + 2 < decoded.length) {
+                    result = fuse(index, result, state);
+                }
+                decoded[index] = result;
+            }
+            return result;
+        }
+        return decode(state.read(addr));
+    }
+
+    private int fuse(int index, int first, State state) {
+        int opcode = first >>> 20;
+        if (opcode != 0x0 && opcode != 0x1) {
+            return first;
+        }
+        int second = decode(state.read(base + index + 1));
+        int secondOpcode = second >>> 20;
+        if (secondOpcode < 0x3 || secondOpcode > 0x7) {
+            return first;
+        }
+        int third = decode(state.read(base + index + 2));
+        int thirdOpcode = third >>> 20;
+        if (thirdOpcode != 0x2 && thirdOpcode != 0x9) {
+            return first;
+        }
+        decoded[index + 1] = second;
+        decoded[index + 2] = third;
+        int fused = FUSED_LDV_STV | (opcode == 0x0 ? 1 : 0) | (thirdOpcode == 0x9 ? 2 : 0);
+        return (fused << 20) | (first & Constants.ADDRESS_MASK);
+    }
+
+    /**
+     * The decoded instruction following a superinstruction: addr must be
+     * the address of the superinstruction plus 1 or 2. Unlike
+     * {@link #fetch(int, State)}, this never returns a superinstruction.
+     */
+    public int peek(int addr, State state) {
+        int result = decoded[addr - base];
+        if (result == UNDECODED) {
+            // invalidated by a write after the superinstruction
+            result = decode(state.read(addr));
+        }
+        return result;
+    }
+
+    /**
+     * Needs to be called whenever the memory at the given address changes.
+     */
+    public void invalidate(int addr) {
+        // the two instructions before may be superinstructions including addr
+        for (int index = addr - base - 2; index <= addr - base; index++) {
+            if (index >= 0 && index < decoded.length) {
+                decoded[index] = UNDECODED;
+            }
+        }
+    }
+
+    public static int decode(int instruction) {
+        int opcode = instruction >> 20;
+        int arg = instruction & Constants.ADDRESS_MASK;
+        if (opcode >= 0 && opcode <= 0xd) {
+            return instruction;
+        }
+        if (opcode == 0xf) {
+            switch (arg) {
+                case 0x10000: return NOT << 20;
+                case 0x20000: return RAR << 20;
+            }
+        }
+        return HALT << 20;
+    }
+}
@@ -14,6 +14,7 @@
  */
 package edu.kit.kastel.formal.mimaflux;
 
+import edu.kit.kastel.formal.mimaflux.LoopDetector.Loop;
 import edu.kit.kastel.formal.mimaflux.MimaAsmParser.FileContext;
 import org.antlr.v4.runtime.BaseErrorListener;
 import org.antlr.v4.runtime.CharStream;
@@ -31,19 +32,88 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 public class Interpreter {
+
+    /**
+     * Number of steps between two calls to a {@link ProgressListener}.
+     */
+    public static final int PROGRESS_INTERVAL = 1 << 16;
+
     private String fileContent;
+    // for the flight recorder events, null if not parsed from a file
+    private String programName;
     private Map<String, Integer> labelMap;
     private List<Command> commands;
+    private ProgramImage program;
 
     private Map<Integer, Integer> initialValues = new HashMap<>();
 
+    // shared between an interpreter and its copies
+    private MemoryImage memoryImage;
+
+    // the loop detected by the last execution, if loopPeriod > 0
+    private int loopStep;
+    private int loopPeriod;
+    private Loop loop;
+
+    // the profile of the last execution, if profiling is enabled
+    private Profile profile;
+
+    /**
+     * The memory image of the program, built once on first use. It is never
+     * modified, executions start from copy-on-write copies of it.
+     */
+    private static class MemoryImage {
+        private State image;
+        private CompiledProgram compiled;
+        private boolean compileAttempted;
+
+        synchronized State copy(List<Command> commands) {
+            if (image == null) {
+                image = new State(commands, Map.of());
+            }
+            return new State(image);
+        }
+
+        synchronized CompiledProgram compile(List<Command> commands, int start) {
+            if (!compileAttempted) {
+                copy(commands);
+                compiled = BytecodeCompiler.compile(image, commands, start);
+                compileAttempted = true;
+            }
+            return compiled;
+        }
+    }
+
+    public Interpreter() {
+    }
+
+    /**
+     * Create an interpreter for the program already parsed by template.
+     *
+     * The program and its memory image are shared; labels and preset values
+     * are copied and can be changed independently. Copies of the same template
+     * can be used concurrently.
+     */
+    public Interpreter(Interpreter template) {
+        this.fileContent = template.fileContent;
+        this.programName = template.programName;
+        this.commands = template.commands;
+        this.program = template.program;
+        this.memoryImage = template.memoryImage;
+        this.labelMap = new HashMap<>(template.labelMap);
+        this.initialValues = new HashMap<>(template.initialValues);
+    }
+
     public void parseFile(String fileName) throws IOException {
         String fileContent = Files.readString(Paths.get(fileName));
+        this.programName = fileName;
         parseString(fileContent);
     }
 
     public void parseString(String fileContent) {
 
+        Events.Parse event = new Events.Parse();
+        event.begin();
         this.fileContent = fileContent;
 
         CharStream input = CharStreams.fromString(fileContent);
@@ -65,98 +135,538 @@ public class Interpreter {
         LabelResolver lr = new LabelResolver();
         lr.resolve(commands);
         labelMap = lr.getLabelMap();
+        program = new ProgramImage(commands, labelMap);
+        memoryImage = new MemoryImage();
 
+        if (event.shouldCommit()) {
+            event.program = programName;
+            event.commands = commands.size();
+            event.labels = labelMap.size();
+            event.commit();
+        }
+    }
+
+    private State makeInitialState() {
+        State state = new State(memoryImage.copy(commands), initialValues);
+        state.set(State.IAR, labelMap.getOrDefault(Constants.START_LABEL, 0));
+        return state;
     }
 
     public Timeline makeTimeline() {
+        return makeTimeline(null, null);
+    }
+
+    /**
+     * Record the timeline of the program, reusing the steps of a previous
+     * timeline (e.g., of the program before it was edited) as far as they
+     * are not affected by the changed memory contents. Only the remaining
+     * steps are executed.
+     *
+     * @param previous a timeline or null. If steps are reused, it must not
+     *                 be used afterwards, except for closing it.
+     * @param listener informed every {@link #PROGRESS_INTERVAL} steps and
+     *                 able to cancel the recording, or null. It obtains the
+     *                 timeline before the execution starts and may navigate
+     *                 it while it grows.
+     */
+    public Timeline makeTimeline(Timeline previous, ProgressListener listener) {
 
-        TimelineBuilder builder = new TimelineBuilder(fileContent, labelMap, commands, initialValues);
+        Events.Execute event = new Events.Execute();
+        event.begin();
+        State initialState = makeInitialState();
+        profile = MimaFlux.mmargs.profile ? new Profile() : null;
+        // a profile needs all steps to be executed
+        int commonSteps = previous == null || profile != null ? 0 : previous.countCommonSteps(initialState);
+        TimelineBuilder builder;
+        LoopDetector detector = null;
+        if (commonSteps > 0) {
+            // the detector needs an earlier state, obtain it before the trace is handed over
+            State saved = MimaFlux.mmargs.noLoopDetection ? null
+                    : previous.getCommonState(LoopDetector.getSavedStep(commonSteps), initialState);
+            builder = previous.resume(commonSteps, initialState, fileContent, labelMap, program);
+            if (saved != null) {
+                detector = new LoopDetector(builder.exposeState(), commonSteps, saved);
+            }
+            MimaFlux.log(" ---- Reusing " + commonSteps + " steps of the previous timeline");
+        } else {
+            builder = new TimelineBuilder(fileContent, labelMap, program, initialState);
+            if (!MimaFlux.mmargs.noLoopDetection) {
+                detector = new LoopDetector(initialState);
+            }
+            if (MimaFlux.mmargs.verbose) {
+                System.out.println(" ---- initial state");
+                initialState.printToConsole(labelMap);
+            }
+        }
         State state = builder.exposeState();
 
-        if (MimaFlux.mmargs.verbose) {
+        resetLoop();
+        builder.setLoopDetector(detector);
+        builder.setProfile(profile);
+
+        // the timeline can be navigated while it is being recorded
+        builder.startRecording();
+        Timeline timeline = builder.build();
+        if (listener != null) {
+            listener.timelineCreated(timeline);
+        }
+
+        InstructionCache cache = new InstructionCache(commands);
+        int fusedSteps = 0;
+        int nextProgress = builder.size() + PROGRESS_INTERVAL;
+        int reportedSteps = builder.size();
+        try {
+            loop: while(builder.size() < MimaFlux.mmargs.maxSteps) {
+                if (builder.size() >= nextProgress) {
+                    Events.stepsExecuted(builder.size() - reportedSteps);
+                    reportedSteps = builder.size();
+                    if (listener != null) {
+                        builder.publish();
+                        if (!listener.stepsRecorded(builder.size())) {
+                            MimaFlux.log(" ---- Cancelled after " + builder.size() + " steps");
+                            break;
+                        }
+                    }
+                    nextProgress = builder.size() + PROGRESS_INTERVAL;
+                }
+                int iar = state.get(State.IAR);
+                builder.execute(iar);
+                int instr = cache.fetch(iar, state);
+                if (instr >>> 20 >= InstructionCache.FUSED_LDV_STV
+                        && MimaFlux.mmargs.maxSteps - builder.size() < InstructionCache.FUSED_LENGTH) {
+                    instr = InstructionCache.decode(state.read(iar));
+                }
+                int arg = instr & Constants.ADDRESS_MASK;
+                int tmp;
+                switch(instr >>> 20) {
+                    case 0x0: builder.set(State.ACCU, arg); builder.incIAR(); break;
+                    case 0x1: builder.set(State.ACCU, builder.read(arg)); builder.incIAR(); break;
+                    case 0x2:
+                        builder.set(arg, state.get(State.ACCU));
+                        cache.invalidate(arg);
+                        builder.incIAR();
+                        break;
+                    case 0x3: alu(builder, state.get(State.ACCU) + builder.read(arg)); break;
+                    case 0x4: alu(builder, state.get(State.ACCU) & builder.read(arg)); break;
+                    case 0x5: alu(builder, state.get(State.ACCU) | builder.read(arg)); break;
+                    case 0x6: alu(builder, state.get(State.ACCU) ^ builder.read(arg)); break;
+                    case 0x7: alu(builder, state.get(State.ACCU) == builder.read(arg) ? -1 : 0); break;
+                    case 0x8: builder.set(State.IAR, arg); break;
+                    case 0x9: jump(builder, profile, iar, arg); break;
+                    case 0xa:
+                        tmp = builder.read(arg);
+                        // throw away bits above address range ...
+                        tmp = builder.read(tmp & Constants.ADDRESS_MASK);
+                        builder.set(State.ACCU, tmp);
+                        builder.incIAR();
+                        break;
+                    case 0xb:
+                        tmp = builder.read(arg) & Constants.ADDRESS_MASK;
+                        builder.set(tmp, state.get(State.ACCU));
+                        cache.invalidate(tmp);
+                        builder.incIAR();
+                        break;
+                    case 0xc:
+                        builder.set(arg, iar + 1);
+                        cache.invalidate(arg);
+                        builder.set(State.IAR, (arg + 1) & Constants.ADDRESS_MASK);
+                        break;
+                    case 0xd:
+                        builder.set(State.IAR, builder.read(arg) & Constants.ADDRESS_MASK);
+                        break;
+                    case InstructionCache.NOT:
+                        builder.set(State.ACCU, (~state.get(State.ACCU)) & Constants.VALUE_MASK);
+                        builder.incIAR();
+                        break;
+                    case InstructionCache.RAR:
+                        tmp = state.get(State.ACCU);
+                        tmp = (tmp >> 1) | ((tmp & 1) << (Constants.VALUE_WIDTH - 1));
+                        builder.set(State.ACCU, tmp);
+                        builder.incIAR();
+                        break;
+                    case InstructionCache.FUSED_LDV_STV:
+                    case InstructionCache.FUSED_LDC_STV:
+                    case InstructionCache.FUSED_LDV_JMN:
+                    case InstructionCache.FUSED_LDC_JMN: {
+                        // one commit per step, the last one after the switch
+                        int second = cache.peek(iar + 1, state);
+                        int third = cache.peek(iar + 2, state);
+                        builder.set(State.ACCU, (instr & (1 << 20)) != 0 ? arg : builder.read(arg));
+                        builder.incIAR();
+                        builder.commit();
+                        if (checkLoop(detector, builder)) {
+                            break loop;
+                        }
+                        builder.execute(iar + 1);
+                        alu(builder, compute(second >>> 20, state.get(State.ACCU),
+                                builder.read(second & Constants.ADDRESS_MASK)));
+                        builder.commit();
+                        if (checkLoop(detector, builder)) {
+                            break loop;
+                        }
+                        builder.execute(iar + 2);
+                        tmp = third & Constants.ADDRESS_MASK;
+                        if ((instr & (2 << 20)) == 0) {
+                            builder.set(tmp, state.get(State.ACCU));
+                            cache.invalidate(tmp);
+                            builder.incIAR();
+                        } else {
+                            jump(builder, profile, iar + 2, tmp);
+                        }
+                        fusedSteps += InstructionCache.FUSED_LENGTH;
+                        break;
+                    }
+                    default: builder.commit(); break loop;
+                }
+                builder.commit();
+                if (MimaFlux.mmargs.verbose) {
+                    System.out.println(" ---- After step " + builder.size());
+                    state.printToConsole(labelMap);
+                }
+                if (checkLoop(detector, builder)) {
+                    break;
+                }
+            }
+        } finally {
+            builder.finishRecording();
+        }
+        Events.stepsExecuted(builder.size() - reportedSteps);
+        MimaFlux.log(" ---- Finished interpretation, " + fusedSteps + " steps in superinstructions");
+
+        if (event.shouldCommit()) {
+            event.program = programName;
+            event.recorded = true;
+            event.steps = builder.size();
+            event.reusedSteps = commonSteps;
+            event.updates = builder.countUpdates();
+            event.traceBytes = builder.getTraceByteSize();
+            event.commit();
+        }
+
+        MimaFlux.log(" ---- Memory: " + timeline.getMemoryStatistics());
+        return timeline;
+    }
+
+    /**
+     * Execute the program without recording a timeline.
+     *
+     * The result is the state in which {@link #makeTimeline()} would end up
+     * after {@code setPosition(countStates() - 1)}, i.e., at most
+     * maxSteps - 1 instructions are executed.
+     *
+     * If the program runs into a loop, the steps going round the loop
+     * are not executed again. The result is the same nonetheless.
+     *
+     * @return the state after the last executed instruction
+     */
+    public State run() {
+        resetLoop();
+        profile = MimaFlux.mmargs.profile ? new Profile() : null;
+        // a profile needs all steps to be executed, skipping loops is not possible
+        return execute(MimaFlux.mmargs.maxSteps - 1, MimaFlux.mmargs.verbose,
+                !MimaFlux.mmargs.noLoopDetection && profile == null, profile, true);
+    }
+
+    /**
+     * @param report whether to report the execution to the flight recorder,
+     *               not done for the probes of {@link #getLoop()}
+     */
+    private State execute(int limit, boolean verbose, boolean detectLoops, Profile profile, boolean report) {
+        Events.Execute event = new Events.Execute();
+        event.begin();
+        State state = makeInitialState();
+        int iar = state.get(State.IAR);
+        int accu = state.get(State.ACCU);
+
+        if (verbose) {
             System.out.println(" ---- initial state");
             state.printToConsole(labelMap);
         }
 
+        CompiledProgram compiled = null;
+        // compiled code does not report what it executes
+        if (MimaFlux.mmargs.compile && !verbose && profile == null) {
+            compiled = memoryImage.compile(commands, labelMap.getOrDefault(Constants.START_LABEL, 0));
+            if (compiled != null && compiled.overlaps(initialValues.keySet())) {
+                MimaFlux.log("Preset values overwrite program code, not using compiled code");
+                compiled = null;
+            }
+        }
+        int[] registers = new int[3];
+        boolean enterCompiled = true;
+
+        // compiled code does not report its memory writes
+        LoopDetector detector = detectLoops && compiled == null ? new LoopDetector(state) : null;
+
         int count = 0;
-        loop: while(builder.size() < MimaFlux.mmargs.maxSteps) {
-            int ir = state.get(state.get(State.IAR));
-            int arg = ir & Constants.ADDRESS_MASK;
-            int opcode = ir >> 20;
+        int fusedSteps = 0;
+        InstructionCache cache = new InstructionCache(commands);
+        loop: while(count < limit) {
+            if (compiled != null) {
+                // after leaving compiled code, interpret at least one instruction
+                if (enterCompiled && compiled.isEntry(iar)) {
+                    registers[0] = iar;
+                    registers[1] = accu;
+                    registers[2] = limit - count;
+                    if (!compiled.execute(state, cache, registers)) {
+                        MimaFlux.log("Program code overwritten, falling back to interpretation");
+                        compiled = null;
+                    }
+                    iar = registers[0];
+                    accu = registers[1];
+                    count = limit - registers[2];
+                    enterCompiled = false;
+                    continue;
+                }
+                enterCompiled = true;
+            }
+            if (profile != null) {
+                profile.executed(iar);
+            }
+            int instr = cache.fetch(iar, state);
+            if (instr >>> 20 >= InstructionCache.FUSED_LDV_STV && limit - count < InstructionCache.FUSED_LENGTH) {
+                instr = InstructionCache.decode(state.read(iar));
+            }
+            int arg = instr & Constants.ADDRESS_MASK;
             int tmp;
-            switch(opcode) {
-                case 0x0: builder.set(State.ACCU, ir); builder.incIAR(); break;
-                case 0x1: builder.set(State.ACCU, state.get(arg)); builder.incIAR(); break;
-                case 0x2: builder.set(arg, state.get(State.ACCU)); builder.incIAR(); break;
-                case 0x3: op(builder, arg, Integer::sum); break;
-                case 0x4: op(builder, arg, (x,y) -> x&y); break;
-                case 0x5: op(builder, arg, (x,y) -> x|y); break;
-                case 0x6: op(builder, arg, (x,y) -> x^y); break;
-                case 0x7: op(builder, arg, (x,y) -> x==y?-1:0); break;
-                case 0x8: builder.set(State.IAR, arg); break;
+            switch(instr >>> 20) {
+                case 0x0: accu = arg; iar = (iar + 1) & Constants.ADDRESS_MASK; break;
+                case 0x1: accu = read(state, profile, arg); iar = (iar + 1) & Constants.ADDRESS_MASK; break;
+                case 0x2:
+                    write(state, detector, profile, arg, accu);
+                    cache.invalidate(arg);
+                    compiled = invalidate(compiled, arg);
+                    iar = (iar + 1) & Constants.ADDRESS_MASK;
+                    break;
+                case 0x3: accu = (accu + read(state, profile, arg)) & Constants.VALUE_MASK; iar = (iar + 1) & Constants.ADDRESS_MASK; break;
+                case 0x4: accu = (accu & read(state, profile, arg)) & Constants.VALUE_MASK; iar = (iar + 1) & Constants.ADDRESS_MASK; break;
+                case 0x5: accu = (accu | read(state, profile, arg)) & Constants.VALUE_MASK; iar = (iar + 1) & Constants.ADDRESS_MASK; break;
+                case 0x6: accu = (accu ^ read(state, profile, arg)) & Constants.VALUE_MASK; iar = (iar + 1) & Constants.ADDRESS_MASK; break;
+                case 0x7: accu = (accu == read(state, profile, arg) ? -1 : 0) & Constants.VALUE_MASK; iar = (iar + 1) & Constants.ADDRESS_MASK; break;
+                case 0x8: iar = arg; break;
                 case 0x9:
-                    if((state.get(State.ACCU) & Constants.SIGNBIT) != 0)  {
-                        builder.set(State.IAR, arg);
-                    } else {
-                        builder.incIAR();
+                    if (profile != null) {
+                        profile.jumped(iar, (accu & Constants.SIGNBIT) != 0);
                     }
+                    iar = (accu & Constants.SIGNBIT) != 0 ? arg : (iar + 1) & Constants.ADDRESS_MASK;
                     break;
                 case 0xa:
-                    tmp = state.get(arg);
                     // throw away bits above address range ...
-                    tmp = state.get(tmp & Constants.ADDRESS_MASK);
-                    builder.set(State.ACCU, tmp);
-                    builder.incIAR();
+                    accu = read(state, profile, read(state, profile, arg) & Constants.ADDRESS_MASK);
+                    iar = (iar + 1) & Constants.ADDRESS_MASK;
                     break;
                 case 0xb:
-                    tmp = state.get(arg);
-                    builder.set(tmp & Constants.ADDRESS_MASK, state.get(State.ACCU));
-                    builder.incIAR();
+                    tmp = read(state, profile, arg) & Constants.ADDRESS_MASK;
+                    write(state, detector, profile, tmp, accu);
+                    cache.invalidate(tmp);
+                    compiled = invalidate(compiled, tmp);
+                    iar = (iar + 1) & Constants.ADDRESS_MASK;
                     break;
                 case 0xc:
-                    builder.set(arg, state.get(State.IAR) + 1);
-                    builder.set(State.IAR, (arg + 1) & Constants.ADDRESS_MASK);
+                    write(state, detector, profile, arg, iar + 1);
+                    cache.invalidate(arg);
+                    compiled = invalidate(compiled, arg);
+                    iar = (arg + 1) & Constants.ADDRESS_MASK;
                     break;
-                case 0xd:
-                    builder.set(State.IAR, state.get(arg) & Constants.ADDRESS_MASK);
+                case 0xd: iar = read(state, profile, arg) & Constants.ADDRESS_MASK; break;
+                case InstructionCache.NOT:
+                    accu = (~accu) & Constants.VALUE_MASK;
+                    iar = (iar + 1) & Constants.ADDRESS_MASK;
+                    break;
+                case InstructionCache.RAR:
+                    accu = (accu >> 1) | ((accu & 1) << (Constants.VALUE_WIDTH - 1));
+                    iar = (iar + 1) & Constants.ADDRESS_MASK;
+                    break;
+                case InstructionCache.FUSED_LDV_STV:
+                case InstructionCache.FUSED_LDC_STV:
+                case InstructionCache.FUSED_LDV_JMN:
+                case InstructionCache.FUSED_LDC_JMN: {
+                    int second = cache.peek(iar + 1, state);
+                    int third = cache.peek(iar + 2, state);
+                    if (profile != null) {
+                        profile.executed(iar + 1);
+                        profile.executed(iar + 2);
+                    }
+                    accu = (instr & (1 << 20)) != 0 ? arg : read(state, profile, arg);
+                    accu = compute(second >>> 20, accu, read(state, profile, second & Constants.ADDRESS_MASK)) & Constants.VALUE_MASK;
+                    tmp = third & Constants.ADDRESS_MASK;
+                    if ((instr & (2 << 20)) == 0) {
+                        write(state, detector, profile, tmp, accu);
+                        cache.invalidate(tmp);
+                        compiled = invalidate(compiled, tmp);
+                        iar = (iar + 3) & Constants.ADDRESS_MASK;
+                    } else {
+                        if (profile != null) {
+                            profile.jumped(iar + 2, (accu & Constants.SIGNBIT) != 0);
+                        }
+                        iar = (accu & Constants.SIGNBIT) != 0 ? tmp : (iar + 3) & Constants.ADDRESS_MASK;
+                    }
+                    count += InstructionCache.FUSED_LENGTH - 1;
+                    fusedSteps += InstructionCache.FUSED_LENGTH;
                     break;
-
-                case 0xf: switch(arg) {
-                    case 0x00000: builder.commit(); break loop;
-                    case 0x10000:
-                        builder.set(State.ACCU, (~state.get(State.ACCU)) & Constants.VALUE_MASK);
-                        builder.incIAR();
-                        break;
-                    case 0x20000:
-                        tmp = state.get(State.ACCU);
-                        tmp = (tmp >> 1) | ((tmp & 1) << (Constants.VALUE_WIDTH - 1));
-                        builder.set(State.ACCU, tmp);
-                        builder.incIAR();
-                        break;
-                    default: builder.commit(); break loop;
                 }
-                break;
-                default: builder.commit(); break loop;
+                default: break loop;
             }
-            builder.commit();
-            if (MimaFlux.mmargs.verbose) {
-                System.out.println(" ---- After step " + builder.size());
+            count ++;
+            if (verbose) {
+                state.set(State.IAR, iar);
+                state.set(State.ACCU, accu);
+                System.out.println(" ---- After step " + count);
                 state.printToConsole(labelMap);
             }
+            if (detector != null && detector.check(state, iar, accu, count)) {
+                loopDetected(detector);
+                // going round the loop does not change anything, only the remainder matters
+                limit = count + (limit - count) % loopPeriod;
+                detector = null;
+            }
+        }
+        state.set(State.IAR, iar);
+        state.set(State.ACCU, accu);
+        if (verbose) {
+            MimaFlux.log(" ---- Finished execution after " + count + " steps, " +
+                    fusedSteps + " of them in superinstructions");
+        }
+
+        // reported at the end only, the inner loop is kept free of bookkeeping
+        if (report) {
+            Events.stepsExecuted(count);
+        }
+        if (report && event.shouldCommit()) {
+            event.program = programName;
+            event.steps = count;
+            event.commit();
+        }
+
+        return state;
+    }
+
+    private static void write(State state, LoopDetector detector, Profile profile, int addr, int value) {
+        if (detector != null) {
+            detector.update(addr, state.read(addr), value);
         }
-        MimaFlux.log(" ---- Finished interpretation");
+        if (profile != null) {
+            profile.written(addr);
+        }
+        state.write(addr, value);
+    }
 
-        return builder.build();
+    private static int read(State state, Profile profile, int addr) {
+        if (profile != null) {
+            profile.read(addr);
+        }
+        return state.read(addr);
     }
 
-    private void op(TimelineBuilder builder, int arg, BinaryIntFunction fun) {
+    // every step of a timeline is checked, this makes resuming a recording possible
+    private boolean checkLoop(LoopDetector detector, TimelineBuilder builder) {
         State state = builder.exposeState();
-        int op1 = state.get(State.ACCU);
-        int op2 = state.get(arg);
-        int res = fun.apply(op1, op2) & Constants.VALUE_MASK;
-        builder.set(State.ACCU, res);
+        if (detector != null && detector.check(state, state.get(State.IAR), state.get(State.ACCU), builder.size())) {
+            loopDetected(detector);
+            return true;
+        }
+        return false;
+    }
+
+    private void resetLoop() {
+        loopPeriod = 0;
+        loop = null;
+    }
+
+    private void loopDetected(LoopDetector detector) {
+        loopStep = detector.getRepeatedStep();
+        loopPeriod = detector.getPeriod();
+        MimaFlux.log(" ---- State after step " + loopStep + " repeats every " + loopPeriod + " steps");
+    }
+
+    /**
+     * The loop detected by the last call to {@link #run()} or
+     * {@link #makeTimeline()}.
+     *
+     * Finding the first step of the loop requires executing the program
+     * again a few times, this is done on the first call only.
+     *
+     * @return the loop, or null if the program did not run into a loop
+     */
+    public Loop getLoop() {
+        if (loopPeriod == 0) {
+            return null;
+        }
+        if (loop == null) {
+            // binary search for the first step whose state recurs after the period
+            int low = 0;
+            int high = loopStep;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                State state = execute(mid, false, false, null, false);
+                State later = execute(mid + loopPeriod, false, false, null, false);
+                if (state.get(State.IAR) == later.get(State.IAR)
+                        && state.get(State.ACCU) == later.get(State.ACCU)
+                        && state.sameMemory(later)) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            loop = new Loop(low, loopPeriod);
+        }
+        return loop;
+    }
+
+    // compiled code must not be used once the program has written to it
+    private static CompiledProgram invalidate(CompiledProgram compiled, int addr) {
+        if (compiled != null && compiled.isCompiled(addr)) {
+            MimaFlux.log("Program code overwritten, falling back to interpretation");
+            return null;
+        }
+        return compiled;
+    }
+
+    // the result of the ALU instruction with the given opcode, not yet masked
+    private static int compute(int opcode, int accu, int operand) {
+        switch (opcode) {
+            case 0x3: return accu + operand;
+            case 0x4: return accu & operand;
+            case 0x5: return accu | operand;
+            case 0x6: return accu ^ operand;
+            case 0x7: return accu == operand ? -1 : 0;
+            default: throw new IllegalArgumentException("Not an ALU opcode: " + opcode);
+        }
+    }
+
+    // the conditional jump at addr to target
+    private static void jump(TimelineBuilder builder, Profile profile, int addr, int target) {
+        boolean taken = (builder.exposeState().get(State.ACCU) & Constants.SIGNBIT) != 0;
+        if (profile != null) {
+            profile.jumped(addr, taken);
+        }
+        if (taken) {
+            builder.set(State.IAR, target);
+        } else {
+            builder.incIAR();
+        }
+    }
+
+    // store the result of an ALU instruction and advance
+    private static void alu(TimelineBuilder builder, int result) {
+        builder.set(State.ACCU, result & Constants.VALUE_MASK);
         builder.incIAR();
     }
+
+    /**
+     * The profile of the last call to {@link #run()} or
+     * {@link #makeTimeline()}.
+     *
+     * @return the profile, or null if profiling is not enabled
+     */
+    public Profile getProfile() {
+        return profile;
+    }
+
+    public ProgramImage getProgram() {
+        return program;
+    }
+
     public Map<String, Integer> getLabelMap() {
         return labelMap;
     }
@@ -0,0 +1,153 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+/**
+ * Detects that an execution has reached a machine state it has been in
+ * before. Since the Mima is deterministic, it will then repeat the same
+ * sequence of states forever.
+ *
+ * A hash of the memory is maintained incrementally: every memory write must
+ * be reported via {@link #update(int, int, int)}. States are compared using
+ * Brent's algorithm: a copy of the state is kept at steps whose distance
+ * doubles, and every later state is compared against it. The hash makes
+ * this comparison O(1); only if hash and registers are equal, the memory
+ * is compared word by word.
+ */
+public class LoopDetector {
+
+    /**
+     * A detected loop: from step entry on, the state repeats every period
+     * steps.
+     */
+    public record Loop(int entry, int period) {
+    }
+
+    private long memoryHash;
+
+    private State saved;
+    private long savedHash;
+    private int savedIar;
+    private int savedAccu;
+    private int savedStep;
+    private int distance = 1;
+
+    private int period;
+
+    public LoopDetector(State state) {
+        memoryHash = hashMemory(state);
+        save(state, state.get(State.IAR), state.get(State.ACCU), 0);
+    }
+
+    /**
+     * Create a detector for an execution that has already reached the given
+     * step without running into a loop. It behaves as if it had been
+     * checking since step 0.
+     *
+     * @param state the state at step
+     * @param saved the state at {@link #getSavedStep(int) getSavedStep(step)}
+     */
+    public LoopDetector(State state, int step, State saved) {
+        memoryHash = hashMemory(saved);
+        save(saved, saved.get(State.IAR), saved.get(State.ACCU), getSavedStep(step));
+        distance = savedStep + 1;
+        memoryHash = hashMemory(state);
+    }
+
+    /**
+     * The step whose state is kept after all steps up to the given one have
+     * been checked. States are kept at steps 0, 1, 3, 7, 15, ...
+     */
+    public static int getSavedStep(int step) {
+        return step == 0 ? 0 : Integer.highestOneBit(step + 1) - 1;
+    }
+
+    private static long hashMemory(State state) {
+        long result = 0;
+        for (int i = 0; i < Constants.ADDRESS_RANGE >> State.PAGE_BITS; i++) {
+            int[] page = state.getPage(i);
+            if (page != null) {
+                for (int j = 0; j < page.length; j++) {
+                    result += hash((i << State.PAGE_BITS) + j, page[j]);
+                }
+            }
+        }
+        return result;
+    }
+
+    // Contribution of a memory word to the memory hash, 0 for empty words
+    private static long hash(int addr, int value) {
+        if (value == 0) {
+            return 0;
+        }
+        // finaliser of SplitMix64
+        long z = ((long) addr << 32) | (value & 0xffff_ffffL);
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Needs to be called whenever a memory location changes.
+     */
+    public void update(int addr, int oldValue, int newValue) {
+        memoryHash += hash(addr, newValue) - hash(addr, oldValue);
+    }
+
+    /**
+     * Compare the state after the given step against the saved state. The
+     * registers are passed separately since the state may not contain
+     * their current values.
+     *
+     * @return true if the state has been seen before
+     */
+    public boolean check(State state, int iar, int accu, int step) {
+        if (memoryHash == savedHash && iar == savedIar && accu == savedAccu
+                && state.sameMemory(saved)) {
+            period = step - savedStep;
+            return true;
+        }
+        if (step - savedStep >= distance) {
+            save(state, iar, accu, step);
+            if (distance < 1 << 30) {
+                distance *= 2;
+            }
+        }
+        return false;
+    }
+
+    private void save(State state, int iar, int accu, int step) {
+        saved = new State(state);
+        savedHash = memoryHash;
+        savedIar = iar;
+        savedAccu = accu;
+        savedStep = step;
+    }
+
+    /**
+     * The number of steps after which the state repeats, valid after
+     * {@link #check} has returned true.
+     */
+    public int getPeriod() {
+        return period;
+    }
+
+    /**
+     * A step within the loop, valid after {@link #check} has returned true.
+     */
+    public int getRepeatedStep() {
+        return savedStep;
+    }
+}
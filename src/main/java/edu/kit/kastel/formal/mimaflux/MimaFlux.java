@@ -20,10 +20,14 @@ import edu.kit.kastel.formal.mimaflux.gui.GUI;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 public class MimaFlux {
 
@@ -52,6 +56,13 @@ public class MimaFlux {
                     .build();
             jc.parse(args);
 
+            boolean batch = mmargs.verifyFile != null && mmargs.batch != null;
+            PrintStream stdout = System.out;
+            if (batch) {
+                // stdout is reserved for the report, the banner and the -verbose logs go to stderr
+                System.setOut(System.err);
+            }
+
             System.out.println("Mima Flux Capacitor " + VERSION);
 
             if (mmargs.help) {
@@ -59,6 +70,17 @@ public class MimaFlux {
                 System.exit(0);
             }
 
+            if (batch) {
+                List<String> sources = new ArrayList<>(mmargs.batch);
+                if (mmargs.fileName != null) {
+                    sources.add(mmargs.fileName);
+                }
+                MimaVerification mv = new MimaVerification();
+                int res = mv.verifyBatch(mmargs.verifyFile, sources, mmargs.reportFile, stdout);
+                // the exit status is taken modulo 256, 256 failed programs must not read as success
+                System.exit(Math.min(res, 255));
+            }
+
             if (mmargs.verifyFile != null) {
                 if (mmargs.fileName == null) {
                     exit("A filename must be provided in -verify mode.");
@@ -68,7 +90,15 @@ public class MimaFlux {
                 System.exit(res);
             }
 
-            if (mmargs.fileName == null) {
+            if (mmargs.loadTrace != null) {
+                if (mmargs.fileName != null) {
+                    exit("A filename cannot be provided together with -loadTrace.");
+                }
+                timeline = TraceFile.load(Paths.get(mmargs.loadTrace));
+                if (mmargs.autoRun) {
+                    finishRun(timeline);
+                }
+            } else if (mmargs.fileName == null) {
                 if (mmargs.autoRun) {
                     exit("A filename must be provided in -run mode.");
                 }
@@ -77,18 +107,30 @@ public class MimaFlux {
                 interpreter.parseFile(mmargs.fileName);
                 loadTestCaseInitialValues(mmargs.loadTest, interpreter);
                 setInitialValues(mmargs.assignments, interpreter);
+                if (mmargs.autoRun && mmargs.saveTrace == null) {
+                    State state = interpreter.run();
+                    state.printToConsole(interpreter.getLabelMap());
+                    if (interpreter.getProfile() != null) {
+                        interpreter.getProfile().printReport(System.out, interpreter.getProgram());
+                    }
+                    ensureTests(state, interpreter.getLabelMap());
+                    System.exit(0);
+                }
+                if (mmargs.autoRun) {
+                    // like run(), the timeline must reach the state after the skipped loop iterations
+                    mmargs.noLoopDetection = true;
+                }
                 timeline = interpreter.makeTimeline();
+                if (mmargs.saveTrace != null) {
+                    timeline.save(Paths.get(mmargs.saveTrace));
+                }
+                if (mmargs.autoRun) {
+                    finishRun(timeline);
+                }
             }
 
-            if (mmargs.autoRun) {
-                timeline.setPosition(timeline.countStates() - 1);
-                timeline.exposeState().printToConsole(timeline.getLabelMap());
-                ensureTests(timeline);
-                System.exit(0);
-            } else {
-                GUI gui = new GUI(timeline);
-                gui.setVisible(true);
-            }
+            GUI gui = new GUI(timeline);
+            gui.setVisible(true);
         } catch (NoSuchFileException ex) {
             exit(new IOException("File not found: " + ex.getMessage(), ex));
         } catch (ParameterException parameterException) {
@@ -99,6 +141,22 @@ public class MimaFlux {
         }
     }
 
+    /**
+     * Print the final state of a recorded timeline and check the tests.
+     * The timeline must have been recorded without loop detection to end in
+     * the state {@link Interpreter#run()} results in.
+     */
+    private static void finishRun(Timeline timeline) {
+        timeline.setPosition(timeline.countStates() - 1);
+        State state = timeline.exposeState();
+        state.printToConsole(timeline.getLabelMap());
+        if (timeline.getProfile() != null) {
+            timeline.getProfile().printReport(System.out, timeline.getProgram());
+        }
+        ensureTests(state, timeline.getLabelMap());
+        System.exit(0);
+    }
+
     private static void loadTestCaseInitialValues(String loadTest, Interpreter interpreter) throws IOException {
         if (loadTest == null) {
             return;
@@ -111,7 +169,7 @@ public class MimaFlux {
         mv.setInitialValues(file, testcase, interpreter);
     }
 
-    private static void ensureTests(Timeline timeline) {
+    private static void ensureTests(State state, Map<String, Integer> labelMap) {
         if (mmargs.tests == null) {
             return;
         }
@@ -123,13 +181,13 @@ public class MimaFlux {
                 if (parts.length != 2) {
                     throw new IllegalArgumentException();
                 }
-                Integer resolved = timeline.getLabelMap().get(parts[0]);
+                Integer resolved = labelMap.get(parts[0]);
                 if (resolved == null) {
                     resolved = Integer.decode(parts[0]);
                 }
                 Integer val = Integer.decode(parts[1]);
 
-                int observed = timeline.exposeState().get(resolved);
+                int observed = state.get(resolved);
                 if(observed != val) {
                     System.err.printf(" ... violated. Expected value %d (0x%x) at address %s, but observed %d (0x%x).",
                             val, val, parts[0], observed, observed);
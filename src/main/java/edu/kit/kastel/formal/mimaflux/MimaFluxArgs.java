@@ -93,6 +93,67 @@ public class MimaFluxArgs {
     )
     public String verifyFile;
 
+    @Parameter(names = {"-batch", "-b"},
+            description = "Arg: <file or directory>.\n" + INDENT +
+                    "Verify the given program or all .mima files in the given directory " +
+                    "against the test cases of -verify. Can be specified multiple times. " +
+                    "Prints a result matrix (see -report). [requires -verify]"
+    )
+    public List<String> batch;
+
+    @Parameter(names = "-report",
+            description = "Arg: <filename>.\n" + INDENT +
+                    "Write the result matrix of -batch to this file, as JSON if the name " +
+                    "ends in .json, as CSV otherwise. Without this option, CSV is printed to stdout.")
+    public String reportFile;
+
+    @Parameter(names = "-threads",
+            description = "Number of test cases (or programs in -batch mode) executed in parallel in -verify mode")
+    public int threads = Runtime.getRuntime().availableProcessors();
+
     @Parameter(names = "-maxSteps", description = "Maximum number of steps to be recorded by mima flux")
     public int maxSteps = 1000;
+
+    @Parameter(names = "-compile",
+            description = "Compile the program to JVM bytecode for faster execution. " +
+                    "[only in -run and -verify mode]")
+    public boolean compile;
+
+    @Parameter(names = "-noLoopDetection",
+            description = "Do not check whether the program reaches a state it has been in before, " +
+                    "i.e., runs into an infinite loop. Without this option, the remaining steps of a loop " +
+                    "are skipped in -run mode and the timeline ends after the first repetition. " +
+                    "[no effect with -compile]")
+    public boolean noLoopDetection;
+
+    @Parameter(names = "-profile",
+            description = "Count how often every instruction is executed and every memory location is " +
+                    "accessed. Prints a report in -run mode and colours the line numbers in the GUI. " +
+                    "Loops are not skipped and -compile has no effect.")
+    public boolean profile;
+
+    @Parameter(names = "-saveTrace",
+            description = "Arg: <filename>.\n" + INDENT +
+                    "Record the timeline of the program and write it to this file, such that it can " +
+                    "be opened with -loadTrace without executing the program again. In -run mode, " +
+                    "loops are not skipped but recorded up to -maxSteps. [not in -verify mode]")
+    public String saveTrace;
+
+    @Parameter(names = "-loadTrace",
+            description = "Arg: <filename>.\n" + INDENT +
+                    "Open a timeline written with -saveTrace instead of an assembly file. In -run mode, " +
+                    "the state at the end of the recorded timeline is printed and the -test " +
+                    "specifications are checked against it. This is the final state of -run only if " +
+                    "the trace has been saved in -run mode or with -noLoopDetection.")
+    public String loadTrace;
+
+    @Parameter(names = "-traceMemory",
+            description = "Heap memory (in MiB) used for the recorded trace, including the index of " +
+                    "memory writes. Older parts of longer traces are moved to a temporary file. 0 keeps everything on the heap.")
+    public int traceMemory = 256;
+
+    @Parameter(names = "-checkpointInterval",
+            description = "Number of steps between two snapshots of the machine state. " +
+                    "Jumping to a step replays at most half this many steps. 0 disables snapshots.")
+    public int checkpointInterval = 1000;
 }
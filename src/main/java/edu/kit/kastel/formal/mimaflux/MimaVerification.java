@@ -12,59 +12,245 @@ import org.antlr.v4.runtime.RecognitionException;
 import org.antlr.v4.runtime.Recognizer;
 
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
 public class MimaVerification {
     private String verifyFilename;
-    private String fileName;
 
+    public enum Outcome { PASSED, FAILED, ERROR }
+
+    /**
+     * The outcome of a single test case together with the log messages
+     * it produced.
+     */
+    private record TestResult(Outcome outcome, String log) {
+    }
+
+    /**
+     * A program under test, parsed once and only used as template for the
+     * test cases. If it could not be parsed, exception is set instead.
+     */
+    private record Program(String fileName, Interpreter interpreter, Exception exception) {
+        static Program load(String fileName) {
+            try {
+                Interpreter interpreter = new Interpreter();
+                interpreter.parseFile(fileName);
+                return new Program(fileName, interpreter, null);
+            } catch (Exception exception) {
+                // reported by every test case
+                return new Program(fileName, null, exception);
+            }
+        }
+    }
+
+    /**
+     * Run all test cases in the spec file on the program in fileName.
+     *
+     * The test cases are executed concurrently on -threads workers; their
+     * logs are printed in the order of the spec file. With -verbose, they are
+     * executed one after the other on the calling thread, such that the
+     * steps printed by the interpreter appear below their test case.
+     *
+     * @return the number of failed test cases
+     */
     public int verify(String verifyFilename, String fileName) throws IOException {
         this.verifyFilename = verifyFilename;
-        this.fileName = fileName;
 
         FileContext file = parse(verifyFilename);
-        log("Verifying from " + verifyFilename);
-        int result = 0;
+        System.out.println("Verifying from " + verifyFilename);
+        Program program = Program.load(fileName);
+
+        if (MimaFlux.mmargs.verbose) {
+            int result = 0;
+            for (TestContext testContext : file.test()) {
+                TestResult testResult = verifyTest(program, testContext, true);
+                System.out.print(testResult.log());
+                if (testResult.outcome() != Outcome.PASSED) {
+                    result ++;
+                }
+            }
+            return result;
+        }
+
+        ExecutorService executor = makeExecutor();
+        try {
+            List<Future<TestResult>> futures = new ArrayList<>();
+            for (TestContext testContext : file.test()) {
+                futures.add(executor.submit(() -> verifyTest(program, testContext, false)));
+            }
+            int result = 0;
+            for (Future<TestResult> future : futures) {
+                TestResult testResult = future.get();
+                System.out.print(testResult.log());
+                if (testResult.outcome() != Outcome.PASSED) {
+                    result ++;
+                }
+            }
+            return result;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Run all test cases in the spec file on a number of programs.
+     *
+     * The spec file is parsed only once, the programs are verified
+     * concurrently on -threads workers. Sources may be files or directories
+     * in which case all .mima files in them are verified.
+     *
+     * A line per program is printed, the complete result matrix is written
+     * to reportFile (as JSON if its name ends in .json, as CSV otherwise)
+     * or as CSV to stdout if reportFile is null.
+     *
+     * @param stdout the stream for the CSV report, {@link System#out} may
+     *               have been redirected to keep the logs out of it
+     * @return the number of programs that failed at least one test case
+     */
+    public int verifyBatch(String verifyFilename, List<String> sources, String reportFile,
+                           PrintStream stdout) throws IOException {
+        this.verifyFilename = verifyFilename;
+
+        FileContext file = parse(verifyFilename);
+        List<String> fileNames = collectPrograms(sources);
+        List<String> testNames = new ArrayList<>();
         for (TestContext testContext : file.test()) {
-            result += verifyTest(testContext);
+            testNames.add(testContext.name.getText());
+        }
+        System.err.println("Verifying " + fileNames.size() + " programs from " + verifyFilename);
+
+        BatchReport report = new BatchReport(verifyFilename, testNames);
+        ExecutorService executor = makeExecutor();
+        try {
+            List<Future<List<TestResult>>> futures = new ArrayList<>();
+            for (String fileName : fileNames) {
+                futures.add(executor.submit(() -> {
+                    Program program = Program.load(fileName);
+                    List<TestResult> results = new ArrayList<>();
+                    for (TestContext testContext : file.test()) {
+                        results.add(verifyTest(program, testContext, false));
+                    }
+                    return results;
+                }));
+            }
+            int result = 0;
+            for (int i = 0; i < fileNames.size(); i++) {
+                List<Outcome> outcomes = new ArrayList<>();
+                for (TestResult testResult : futures.get(i).get()) {
+                    outcomes.add(testResult.outcome());
+                }
+                report.add(fileNames.get(i), outcomes);
+                long passed = outcomes.stream().filter(o -> o == Outcome.PASSED).count();
+                System.err.printf("%s: %d of %d tests passed%n", fileNames.get(i), passed, outcomes.size());
+                if (passed < outcomes.size()) {
+                    result ++;
+                }
+            }
+            report.write(reportFile, stdout);
+            return result;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<String> collectPrograms(List<String> sources) throws IOException {
+        List<String> result = new ArrayList<>();
+        for (String source : sources) {
+            Path path = Paths.get(source);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> files = Files.list(path)) {
+                    files.filter(p -> p.toString().endsWith(".mima"))
+                            .sorted()
+                            .forEach(p -> result.add(p.toString()));
+                }
+            } else {
+                result.add(source);
+            }
         }
         return result;
     }
 
+    private static ExecutorService makeExecutor() {
+        // verbose logs of concurrent executions would be interleaved
+        int threads = MimaFlux.mmargs.verbose ? 1 : Math.max(1, MimaFlux.mmargs.threads);
+        return Executors.newFixedThreadPool(threads);
+    }
+
     public void setInitialValues(String verifyFilename, String testcase, Interpreter interpreter) throws IOException {
         interpreter.getLabelMap().put("_accu", State.ACCU);
         interpreter.getLabelMap().put("_iar", State.IAR);
         FileContext file = parse(verifyFilename);
         for (TestContext testContext : file.test()) {
             if(testContext.name.getText().equals(testcase)) {
-                setInitialValues(testContext.labels, testContext.pre, interpreter);
+                StringBuilder log = new StringBuilder();
+                setInitialValues(testContext.labels, testContext.pre, interpreter, log);
+                System.out.print(log);
                 return;
             }
         }
         MimaFlux.exit(String.format("Testcase %s not found in %s.", testcase, verifyFilename));
     }
 
-    private int verifyTest(TestContext testContext) {
-        log("------------------");
+    /**
+     * @param echo print the log so far before the program is executed, the
+     *             result contains the remainder only
+     */
+    private TestResult verifyTest(Program program, TestContext testContext, boolean echo) {
+        Events.Verify event = new Events.Verify();
+        event.begin();
+        TestResult result = runTest(program, testContext, echo);
+        if (event.shouldCommit()) {
+            event.program = program.fileName();
+            event.testCase = testContext.name.getText();
+            event.outcome = result.outcome().name();
+            event.commit();
+        }
+        return result;
+    }
+
+    private TestResult runTest(Program program, TestContext testContext, boolean echo) {
+        StringBuilder log = new StringBuilder();
+        log(log, "------------------");
         String name = testContext.name.getText();
-        log("TEST CASE: " + name);
+        log(log, "TEST CASE: " + name);
         try {
-            Interpreter interpreter = new Interpreter();
-            interpreter.parseFile(fileName);
+            if (program.exception() != null) {
+                throw program.exception();
+            }
+            Interpreter interpreter = new Interpreter(program.interpreter());
             interpreter.getLabelMap().put("_accu", State.ACCU);
             interpreter.getLabelMap().put("_iar", State.IAR);
-            setInitialValues(testContext.labels, testContext.pre, interpreter);
-            Timeline timeline = interpreter.makeTimeline();
-            timeline.setPosition(timeline.countStates() - 1);
-            return checkPostConditions(testContext, interpreter, timeline);
+            setInitialValues(testContext.labels, testContext.pre, interpreter, log);
+            if (echo) {
+                System.out.print(log);
+                log.setLength(0);
+            }
+            State state = interpreter.run();
+            boolean passed = checkPostConditions(program, testContext, interpreter, state, log);
+            return new TestResult(passed ? Outcome.PASSED : Outcome.FAILED, log.toString());
         } catch (Exception exception) {
-            log(" ... Exception (try -verbose)");
+            log(log, " ... Exception (try -verbose)");
             MimaFlux.logStacktrace(exception);
-            return 1;
+            return new TestResult(Outcome.ERROR, log.toString());
         }
     }
 
-    private int checkPostConditions(TestContext testContext, Interpreter interpreter, Timeline timeline) {
+    private boolean checkPostConditions(Program program, TestContext testContext, Interpreter interpreter,
+                                        State state, StringBuilder log) {
         for (SpecContext specContext : testContext.post) {
             String addr = specContext.addr.getText();
             String valStr = specContext.val.getText();
@@ -74,29 +260,30 @@ public class MimaVerification {
             }
             Integer val = Integer.decode(valStr);
 
-            log(" Checking: " + addr + " = " + valStr);
+            log(log, " Checking: " + addr + " = " + valStr);
 
-            int observed = timeline.exposeState().get(resolved);
+            int observed = state.get(resolved);
             if (observed != val) {
-                log(String.format("  ... violated. Expected value %d (0x%x) at address %s, but observed %d (0x%x).",
+                log(log, String.format("  ... violated. Expected value %d (0x%x) at address %s, but observed %d (0x%x).",
                         val, val, addr, observed, observed));
-                log("  Try invoking mimaflux with '-loadTest " + verifyFilename + "#" +
-                        testContext.name.getText() + " " + fileName + "'");
-                log("Test failed.");
-                return 1;
+                log(log, "  Try invoking mimaflux with '-loadTest " + verifyFilename + "#" +
+                        testContext.name.getText() + " " + program.fileName() + "'");
+                log(log, "Test failed.");
+                return false;
             } else {
-                log(" ... checked.");
+                log(log, " ... checked.");
             }
         }
-        return 0;
+        return true;
     }
 
-    private void setInitialValues(List<LabelSpecContext> labelSpecs, List<SpecContext> pre, Interpreter interpreter) {
+    private void setInitialValues(List<LabelSpecContext> labelSpecs, List<SpecContext> pre,
+                                  Interpreter interpreter, StringBuilder log) {
         for (LabelSpecContext labelSpec : labelSpecs) {
             String label = labelSpec.label.getText();
             String valStr = labelSpec.val.getText();
             Integer value = Integer.decode(valStr);
-            log(" Setting: " + label + " -> " + valStr);
+            log(log, " Setting: " + label + " -> " + valStr);
             interpreter.addLabelValue(label, value & Constants.ADDRESS_MASK);
         }
         for (SpecContext specContext : pre) {
@@ -107,13 +294,13 @@ public class MimaVerification {
                 resolved = Integer.decode(addr);
             }
             Integer val = Integer.decode(valStr);
-            log(" Setting: " + addr + " := " + valStr);
+            log(log, " Setting: " + addr + " := " + valStr);
             interpreter.addPresetValue(resolved, val);
         }
     }
 
-    private void log(String msg) {
-        System.out.println(msg);
+    private static void log(StringBuilder log, String msg) {
+        log.append(msg).append(System.lineSeparator());
     }
 
     private FileContext parse(String filename) throws IOException {
@@ -0,0 +1,215 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Counts how often the instructions of a program are executed and how
+ * often memory locations are read and written during one execution, and
+ * which way the conditional jumps go.
+ *
+ * Profiling is enabled with -profile. Like the memory in {@link State},
+ * the counters are kept in lazily allocated pages.
+ */
+public class Profile {
+
+    // the number of entries printed per section of the report
+    private static final int REPORT_LENGTH = 20;
+
+    private final Counters executions = new Counters();
+    private final Counters reads = new Counters();
+    private final Counters writes = new Counters();
+    private final Counters jumpsTaken = new Counters();
+    private final Counters jumpsNotTaken = new Counters();
+    private long steps;
+
+    private static class Counters {
+        private static final int PAGE_MASK = State.PAGE_SIZE - 1;
+
+        private final int[][] pages = new int[Constants.ADDRESS_RANGE >> State.PAGE_BITS][];
+
+        void increment(int addr) {
+            int[] page = pages[addr >> State.PAGE_BITS];
+            if (page == null) {
+                page = new int[State.PAGE_SIZE];
+                pages[addr >> State.PAGE_BITS] = page;
+            }
+            page[addr & PAGE_MASK] ++;
+        }
+
+        int get(int addr) {
+            int[] page = pages[addr >> State.PAGE_BITS];
+            return page == null ? 0 : page[addr & PAGE_MASK];
+        }
+
+        // the addresses with a non-zero count, in ascending order
+        List<Integer> getAddresses() {
+            List<Integer> result = new ArrayList<>();
+            for (int i = 0; i < pages.length; i++) {
+                if (pages[i] != null) {
+                    for (int j = 0; j < State.PAGE_SIZE; j++) {
+                        if (pages[i][j] != 0) {
+                            result.add((i << State.PAGE_BITS) + j);
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Needs to be called when the instruction at addr is executed.
+     */
+    public void executed(int addr) {
+        executions.increment(addr);
+        steps ++;
+    }
+
+    public void read(int addr) {
+        reads.increment(addr);
+    }
+
+    public void written(int addr) {
+        writes.increment(addr);
+    }
+
+    /**
+     * Needs to be called when the conditional jump at addr is executed.
+     */
+    public void jumped(int addr, boolean taken) {
+        (taken ? jumpsTaken : jumpsNotTaken).increment(addr);
+    }
+
+    public long countSteps() {
+        return steps;
+    }
+
+    public int getExecutions(int addr) {
+        return executions.get(addr);
+    }
+
+    public int getReads(int addr) {
+        return reads.get(addr);
+    }
+
+    public int getWrites(int addr) {
+        return writes.get(addr);
+    }
+
+    public int getJumpsTaken(int addr) {
+        return jumpsTaken.get(addr);
+    }
+
+    public int getJumpsNotTaken(int addr) {
+        return jumpsNotTaken.get(addr);
+    }
+
+    /**
+     * The number of executions per source line of the program, indexed by
+     * the line number (1-based). Instructions that are not in the program
+     * text (e.g., written by the program) are not counted.
+     */
+    public int[] getExecutionsByLine(ProgramImage program) {
+        int lines = 0;
+        for (Command command : program.getCommands()) {
+            lines = Math.max(lines, command.getMnemonicLine() + 1);
+        }
+        int[] result = new int[lines];
+        for (Command command : program.getCommands()) {
+            // the first command at an address is the one executed
+            if (program.getCommand(command.address()) == command) {
+                result[command.getMnemonicLine()] += executions.get(command.address());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Print the hottest lines, the conditional jumps and the most accessed
+     * memory locations.
+     */
+    public void printReport(PrintStream out, ProgramImage program) {
+        out.printf(" ---- Profile of %d steps%n", steps);
+
+        List<Integer> executed = executions.getAddresses();
+        executed.sort(Comparator.comparing(executions::get).reversed());
+        out.println("Executions:");
+        out.println("  Line  Address   Executed       %  Instruction");
+        for (int addr : executed.subList(0, Math.min(REPORT_LENGTH, executed.size()))) {
+            Command command = program.getCommand(addr);
+            out.printf("  %4s  0x%05x %10d  %5.1f%%  %s%n",
+                    command == null ? "-" : Integer.toString(command.getMnemonicLine()),
+                    addr, executions.get(addr), 100. * executions.get(addr) / steps,
+                    command == null ? "(not in program)" : describe(command));
+        }
+        printRemainder(out, executed.size());
+
+        List<Integer> jumps = jumpsTaken.getAddresses();
+        for (int addr : jumpsNotTaken.getAddresses()) {
+            if (jumpsTaken.get(addr) == 0) {
+                jumps.add(addr);
+            }
+        }
+        if (!jumps.isEmpty()) {
+            jumps.sort(Comparator.comparing((Integer addr) -> jumpsTaken.get(addr) + jumpsNotTaken.get(addr)).reversed());
+            out.println("Conditional jumps:");
+            out.println("  Line  Address      Taken  Not taken");
+            for (int addr : jumps.subList(0, Math.min(REPORT_LENGTH, jumps.size()))) {
+                Command command = program.getCommand(addr);
+                out.printf("  %4s  0x%05x %10d %10d%n",
+                        command == null ? "-" : Integer.toString(command.getMnemonicLine()),
+                        addr, jumpsTaken.get(addr), jumpsNotTaken.get(addr));
+            }
+            printRemainder(out, jumps.size());
+        }
+
+        List<Integer> accessed = reads.getAddresses();
+        for (int addr : writes.getAddresses()) {
+            if (reads.get(addr) == 0) {
+                accessed.add(addr);
+            }
+        }
+        if (!accessed.isEmpty()) {
+            accessed.sort(Comparator.comparing((Integer addr) -> reads.get(addr) + writes.get(addr)).reversed());
+            out.println("Memory accesses:");
+            out.println("  Address       Reads     Writes  Label");
+            for (int addr : accessed.subList(0, Math.min(REPORT_LENGTH, accessed.size()))) {
+                String label = program.getLabel(addr);
+                out.printf("  0x%05x %10d %10d  %s%n",
+                        addr, reads.get(addr), writes.get(addr), label == null ? "" : label);
+            }
+            printRemainder(out, accessed.size());
+        }
+    }
+
+    private static void printRemainder(PrintStream out, int size) {
+        if (size > REPORT_LENGTH) {
+            out.printf("  ... and %d more%n", size - REPORT_LENGTH);
+        }
+    }
+
+    private static String describe(Command command) {
+        if (command.ctx().mnemomicWithout() != null) {
+            return command.instruction();
+        }
+        return command.instruction() + " "
+                + (command.labelArg() != null ? command.labelArg() : Integer.toString(command.valueArg()));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The commands of a parsed program indexed by address and by source line,
+ * and the labels defined in the program indexed by their value.
+ *
+ * If several commands are placed at the same address, the first one in the
+ * source counts; the lines of the others do not have an address.
+ * The image is built once after the labels have been resolved and never
+ * modified.
+ */
+public class ProgramImage {
+
+    private final List<Command> commands;
+    private final Map<Integer, Command> commandsByAddress = new HashMap<>();
+    private final Map<Integer, List<String>> labelsByValue = new HashMap<>();
+    // the address of the command on line n at index n, -1 if there is none
+    private final int[] addressesByLine;
+
+    /**
+     * @param commands the resolved commands of the program
+     * @param labelMap the labels defined in the program
+     */
+    public ProgramImage(List<Command> commands, Map<String, Integer> labelMap) {
+        this.commands = commands;
+        int lines = 0;
+        for (Command command : commands) {
+            lines = Math.max(lines, command.getMnemonicLine() + 1);
+        }
+        this.addressesByLine = new int[lines];
+        Arrays.fill(addressesByLine, -1);
+        for (Command command : commands) {
+            if (commandsByAddress.putIfAbsent(command.address(), command) == null) {
+                addressesByLine[command.getMnemonicLine()] = command.address();
+            }
+        }
+        // in order of definition where possible, the map itself has no order
+        for (Command command : commands) {
+            if (command.label() != null) {
+                addLabel(command.label(), command.address());
+            }
+        }
+        for (Map.Entry<String, Integer> entry : labelMap.entrySet()) {
+            List<String> labels = labelsByValue.get(entry.getValue());
+            if (labels == null || !labels.contains(entry.getKey())) {
+                addLabel(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void addLabel(String label, int value) {
+        labelsByValue.computeIfAbsent(value, k -> new ArrayList<>()).add(label);
+    }
+
+    public List<Command> getCommands() {
+        return Collections.unmodifiableList(commands);
+    }
+
+    /**
+     * The command placed at the given address, or null if there is none.
+     */
+    public Command getCommand(int address) {
+        return commandsByAddress.get(address);
+    }
+
+    /**
+     * The address of the command on the given line (1-based), or -1 if
+     * there is none.
+     */
+    public int getAddress(int line) {
+        if (line < 0 || line >= addressesByLine.length) {
+            return -1;
+        }
+        return addressesByLine[line];
+    }
+
+    /**
+     * The labels whose value is the given address, possibly empty.
+     */
+    public List<String> getLabels(int address) {
+        List<String> labels = labelsByValue.get(address);
+        return labels == null ? List.of() : Collections.unmodifiableList(labels);
+    }
+
+    /**
+     * The first label whose value is the given address, or null if there
+     * is none.
+     */
+    public String getLabel(int address) {
+        List<String> labels = labelsByValue.get(address);
+        return labels == null ? null : labels.get(0);
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+/**
+ * Informed regularly while a timeline is recorded, see
+ * {@link Interpreter#makeTimeline(Timeline, ProgressListener)}. It may be
+ * called from a thread other than the event dispatch thread.
+ */
+public interface ProgressListener {
+    /**
+     * Called before the execution starts. The timeline grows while the
+     * steps are recorded and may be navigated meanwhile.
+     */
+    public default void timelineCreated(Timeline timeline) {
+    }
+
+    /**
+     * @param steps the number of steps recorded so far
+     * @return false to stop the recording, the timeline then contains the
+     *         steps recorded so far
+     */
+    public boolean stepsRecorded(int steps);
+}
@@ -0,0 +1,137 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A temporary file into which sealed chunks of a {@link TraceStore} are
+ * moved when the trace grows beyond its heap budget.
+ *
+ * The file is memory-mapped in regions of 64 MiB, so reading a spilled
+ * value only pages in the part of the file that is actually needed. All
+ * chunks have the same size and are addressed by their slot number.
+ *
+ * A {@link TraceFile} is mapped the same way, read-only, see
+ * {@link #map(Path, int)}.
+ */
+public class SpillFile {
+
+    private static final int REGION_BITS = 26;
+    private static final long REGION_SIZE = 1L << REGION_BITS;
+
+    private final int chunkSize;
+    private final Path path;
+    private final FileChannel channel;
+    private final boolean readOnly;
+    private final List<IntBuffer> regions = new ArrayList<>();
+    private long slotCount;
+
+    public SpillFile(int chunkSize) {
+        this.chunkSize = chunkSize;
+        this.readOnly = false;
+        try {
+            this.path = Files.createTempFile("mimaflux", ".trace");
+            path.toFile().deleteOnExit();
+            this.channel = FileChannel.open(path, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create trace file", e);
+        }
+        MimaFlux.log("Spilling trace to " + path);
+    }
+
+    private SpillFile(int chunkSize, Path path) throws IOException {
+        this.chunkSize = chunkSize;
+        this.readOnly = true;
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.slotCount = channel.size() / (4L * chunkSize);
+    }
+
+    /**
+     * Map an existing file read-only. Slot n is the chunk at byte offset
+     * n * chunkSize * 4, chunks cannot be written.
+     */
+    public static SpillFile map(Path path, int chunkSize) throws IOException {
+        return new SpillFile(chunkSize, path);
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Copy a chunk into the file.
+     *
+     * @return the slot under which the chunk can be read
+     */
+    public long write(int[] chunk) {
+        if (readOnly) {
+            throw new IllegalStateException("The trace file " + path + " is read-only");
+        }
+        long slot = slotCount++;
+        long pos = slot * chunkSize;
+        region(pos).put((int) (pos & (REGION_SIZE / 4 - 1)), chunk);
+        return slot;
+    }
+
+    public int read(long slot, int index) {
+        long pos = slot * chunkSize + index;
+        return region(pos).get((int) (pos & (REGION_SIZE / 4 - 1)));
+    }
+
+    // pos is counted in ints, not bytes
+    private IntBuffer region(long pos) {
+        int region = (int) ((pos * 4) >> REGION_BITS);
+        while (regions.size() <= region) {
+            try {
+                long start = regions.size() * REGION_SIZE;
+                // a read-only mapping cannot extend the file
+                IntBuffer buffer = readOnly
+                        ? channel.map(MapMode.READ_ONLY, start, Math.min(REGION_SIZE, channel.size() - start)).asIntBuffer()
+                        : channel.map(MapMode.READ_WRITE, start, REGION_SIZE).asIntBuffer();
+                regions.add(buffer);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot map trace file " + path, e);
+            }
+        }
+        return regions.get(region);
+    }
+
+    /**
+     * Number of bytes written to the file, or the size of a mapped file.
+     */
+    public long getByteSize() {
+        return slotCount * chunkSize * 4;
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            MimaFlux.logStacktrace(e);
+        }
+    }
+}
@@ -16,10 +16,12 @@ package edu.kit.kastel.formal.mimaflux;
 
 import edu.kit.kastel.formal.mimaflux.MimaFluxArgs.Range;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.function.IntConsumer;
 
 public class State {
 
@@ -67,7 +69,14 @@ public class State {
             Map.entry(0xf20000, "RAR")
     );
 
-    private int[] mem = new int[Constants.ADDRESS_RANGE];
+    public static final int PAGE_BITS = 12;
+    public static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // Memory is allocated lazily in pages, a missing page reads as zeroes.
+    // A shared page belongs to more than one state and is copied on the next write.
+    private final int[][] pages = new int[Constants.ADDRESS_RANGE >> PAGE_BITS][];
+    private final boolean[] shared = new boolean[pages.length];
 
     private int iar;
     private int accu;
@@ -77,6 +86,33 @@ public class State {
         populateFromInitialValues(initialValues);
     }
 
+    /**
+     * Create a copy of a state. The memory pages are shared between
+     * both states until one of them writes to a page.
+     */
+    public State(State other) {
+        for (int i = 0; i < pages.length; i++) {
+            if (other.pages[i] != null) {
+                pages[i] = other.pages[i];
+                shared[i] = true;
+                if (!other.shared[i]) {
+                    other.shared[i] = true;
+                }
+            }
+        }
+        this.iar = other.iar;
+        this.accu = other.accu;
+    }
+
+    /**
+     * Create a copy of a state (see {@link #State(State)}) and apply
+     * the given initial values to it.
+     */
+    public State(State other, Map<Integer, Integer> initialValues) {
+        this(other);
+        populateFromInitialValues(initialValues);
+    }
+
     private void populateFromInitialValues(Map<Integer, Integer> initialValues) {
         for (Entry<Integer, Integer> entry : initialValues.entrySet()) {
             set(entry.getKey(), entry.getValue());
@@ -94,17 +130,17 @@ public class State {
                     throw new TokenedException(command.getMnemonic(),
                             String.format("%d (0x%x) is out of range for a 24-bit value.", arg, arg));
                 }
-                mem[adr] = arg & Constants.VALUE_MASK;
+                write(adr, arg & Constants.VALUE_MASK);
              } else {
                 int opcode = OPCODES.getOrDefault(command.instruction(), -1);
-                mem[adr] = opcode;
                 if ((opcode & 0xf0_0000) != 0xf0_0000) {
                     if (!Constants.isAddress(arg)) {
                         throw new TokenedException(command.getMnemonic(),
                                 String.format("%d (0x%x) is out of range for a 20-bit address value.", arg, arg));
                     }
-                    mem[adr] |= arg;
+                    opcode |= arg;
                 }
+                write(adr, opcode);
             }
         }
     }
@@ -113,7 +149,7 @@ public class State {
         switch(addr) {
             case IAR: iar = value; break;
             case ACCU: accu = value; break;
-            default: mem[addr] = value;
+            default: write(addr, value);
         }
     }
 
@@ -121,12 +157,114 @@ public class State {
         switch (addr) {
             case IAR: return iar;
             case ACCU: return accu;
-            default: return mem[addr];
+            default: return read(addr);
+        }
+    }
+
+    /**
+     * Read a memory location, addr must be a valid address.
+     */
+    public int read(int addr) {
+        int[] page = pages[addr >> PAGE_BITS];
+        return page == null ? 0 : page[addr & PAGE_MASK];
+    }
+
+    /**
+     * Write a memory location, addr must be a valid address.
+     */
+    public void write(int addr, int value) {
+        int index = addr >> PAGE_BITS;
+        int[] page = pages[index];
+        if (page == null) {
+            page = new int[PAGE_SIZE];
+            pages[index] = page;
+        } else if (shared[index]) {
+            page = page.clone();
+            pages[index] = page;
+            shared[index] = false;
+        }
+        page[addr & PAGE_MASK] = value;
+    }
+
+    /**
+     * Copy consecutive memory locations into dest. The range must not
+     * cross a page boundary.
+     */
+    void copyTo(int addr, int[] dest) {
+        int[] page = pages[addr >> PAGE_BITS];
+        if (page == null) {
+            Arrays.fill(dest, 0);
+        } else {
+            System.arraycopy(page, addr & PAGE_MASK, dest, 0, dest.length);
+        }
+    }
+
+    /**
+     * The memory page with the given number, or null if it has never been
+     * written to. The result must not be modified.
+     */
+    int[] getPage(int index) {
+        return pages[index];
+    }
+
+    /**
+     * Check whether both states have the same memory contents.
+     * The registers are not compared.
+     */
+    boolean sameMemory(State other) {
+        for (int i = 0; i < pages.length; i++) {
+            int[] page = pages[i];
+            int[] otherPage = other.pages[i];
+            if (page == otherPage) {
+                continue;
+            }
+            if (page == null) {
+                page = new int[PAGE_SIZE];
+            } else if (otherPage == null) {
+                otherPage = new int[PAGE_SIZE];
+            }
+            if (!Arrays.equals(page, otherPage)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Report every memory location whose value differs in other.
+     */
+    void forEachDifference(State other, IntConsumer action) {
+        for (int i = 0; i < pages.length; i++) {
+            int[] page = pages[i];
+            int[] otherPage = other.pages[i];
+            if (page == otherPage) {
+                continue;
+            }
+            for (int j = 0; j < PAGE_SIZE; j++) {
+                int value = page == null ? 0 : page[j];
+                int otherValue = otherPage == null ? 0 : otherPage[j];
+                if (value != otherValue) {
+                    action.accept((i << PAGE_BITS) + j);
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of memory pages allocated by this state.
+     */
+    public int countPages() {
+        int result = 0;
+        for (int[] page : pages) {
+            if (page != null) {
+                result ++;
+            }
         }
+        return result;
     }
 
     public void printToConsole(Map<String, Integer> labelMap) {
-        System.out.printf("        IAR  = 0x%06x = %8d\t\t(instruction there: %s)%n", iar, iar, toInstruction(mem[iar]));
+        System.out.printf("        IAR  = 0x%06x = %8d\t\t(instruction there: %s)%n", iar, iar, toInstruction(read(iar)));
         System.out.printf("        ACCU = 0x%06x = %8d%n", accu, accu);
         Optional<Integer> maxLen = labelMap.keySet().stream().map(String::length).max(Integer::compare);
         for (Entry<String, Integer> entry : labelMap.entrySet()) {
@@ -136,12 +274,13 @@ public class State {
             }
             int val = entry.getValue();
             System.out.printf("Label '%" + maxLen.get() +
-                    "s' at mem[0x%05x]  =  0x%06x = %8d = %s%n", entry.getKey(), val, mem[val], mem[val], toInstruction(mem[val]));
+                    "s' at mem[0x%05x]  =  0x%06x = %8d = %s%n", entry.getKey(), val, read(val), read(val), toInstruction(read(val)));
         }
         if (MimaFlux.mmargs.printRanges != null) {
             for (Range range : MimaFlux.mmargs.printRanges) {
                 for (int i = range.from(); i <= range.to(); i++) {
-                    System.out.printf("mem[0x%05x] = 0x%06x = %8d = %s%n", i, mem[i], mem[i], toInstruction(mem[i]));
+                    int val = read(i);
+                    System.out.printf("mem[0x%05x] = 0x%06x = %8d = %s%n", i, val, val, toInstruction(val));
                 }
             }
         }
@@ -0,0 +1,33 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+/**
+ * The memory locations and registers whose values differ between two
+ * positions of a timeline, together with their values at the new position.
+ * The registers come first, followed by the memory locations in ascending
+ * order.
+ *
+ * @param position the new position
+ * @param addresses the changed locations, {@link State#ACCU} and
+ *                  {@link State#IAR} for the registers
+ * @param values the values of the locations at the new position
+ */
+public record StateChange(int position, int[] addresses, int[] values) {
+
+    public int size() {
+        return addresses.length;
+    }
+}
@@ -14,7 +14,12 @@
  */
 package edu.kit.kastel.formal.mimaflux;
 
-@FunctionalInterface
-public interface BinaryIntFunction {
-    int apply(int operand1, int operand2);
+/**
+ * Informed once whenever the position of a timeline changes, with the net
+ * effect of the change, see
+ * {@link Timeline#addStateListener(StateChangeListener, int, int)}. Unlike
+ * an {@link UpdateListener}, it is not called for every single update.
+ */
+public interface StateChangeListener {
+    public void stateChanged(StateChange change);
 }
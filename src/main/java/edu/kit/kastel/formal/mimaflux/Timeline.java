@@ -14,39 +14,79 @@
  */
 package edu.kit.kastel.formal.mimaflux;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.locks.Lock;
 
 public class Timeline {
 
     public final static int STEP = -3;
 
-    private final Update[][] updates;
+    private final TraceStore trace;
+    private final Checkpoints checkpoints;
+    private final AccessLog accessLog;
+    private final WriteIndex writeIndex;
+    // held by the builder while it records steps
+    private final Lock recording;
 
     private final String fileContent;
     private final Map<String, Integer> labelMap;
-    private final List<Command> commands;
+    private final ProgramImage program;
+    private final State initialState;
     private final State state;
 
     private int currentPosition = 0;
     private List<UpdateListener> listeners = new ArrayList<>();
+    private List<Subscription> subscriptions = new ArrayList<>();
 
-    public Timeline(Update[][] updates, String fileContent, Map<String, Integer> labelMap,
-                    List<Command> commands, Map<Integer, Integer> initialValues) {
-        this.updates = updates;
+    private record Subscription(StateChangeListener listener, int from, int to) {}
+
+    // the locations updated since the last state change was delivered, and
+    // their values before. The bits are indexed by location - State.ACCU.
+    private final BitSet dirty = new BitSet();
+    private int[] dirtyAddresses = new int[64];
+    private int[] dirtyValues = new int[64];
+    private int dirtyCount;
+
+    // set when the recording has been handed over by resume
+    private boolean resumed;
+
+    private Profile profile;
+
+    /**
+     * Create a timeline positioned at step 0.
+     *
+     * The steps may still be recorded while the timeline is in use. The
+     * recording holds the lock, and the timeline acquires it before reading
+     * trace or checkpoints.
+     *
+     * @param initialState the state at step 0, owned by the timeline afterwards
+     */
+    public Timeline(TraceStore trace, Checkpoints checkpoints, AccessLog accessLog, WriteIndex writeIndex,
+                    Lock recording, State initialState, String fileContent, Map<String, Integer> labelMap,
+                    ProgramImage program) {
+        this.trace = trace;
+        this.checkpoints = checkpoints;
+        this.accessLog = accessLog;
+        this.writeIndex = writeIndex;
+        this.recording = recording;
         this.fileContent = fileContent;
         this.labelMap = labelMap;
-        this.commands = commands;
-        this.state = new State(commands, initialValues);
-        int start = labelMap.getOrDefault(Constants.START_LABEL, 0);
-        state.set(State.IAR, start);
+        this.program = program;
+        this.initialState = new State(initialState);
+        this.state = initialState;
     }
 
     private void update(int addr, int val) {
         if(addr != STEP) {
+            if (!subscriptions.isEmpty()) {
+                markDirty(addr);
+            }
             state.set(addr, val);
         }
         for (UpdateListener listener : listeners) {
@@ -54,6 +94,75 @@ public class Timeline {
         }
     }
 
+    private void markDirty(int addr) {
+        int index = addr - State.ACCU;
+        if (dirty.get(index)) {
+            return;
+        }
+        dirty.set(index);
+        if (dirtyCount == dirtyAddresses.length) {
+            dirtyAddresses = Arrays.copyOf(dirtyAddresses, dirtyCount * 2);
+            dirtyValues = Arrays.copyOf(dirtyValues, dirtyCount * 2);
+        }
+        dirtyAddresses[dirtyCount] = addr;
+        dirtyValues[dirtyCount] = state.get(addr);
+        dirtyCount ++;
+    }
+
+    // the net effect of the updates since the last call
+    private StateChange collectChanges() {
+        int[] changed = new int[dirtyCount];
+        int count = 0;
+        for (int i = 0; i < dirtyCount; i++) {
+            int addr = dirtyAddresses[i];
+            dirty.clear(addr - State.ACCU);
+            if (state.get(addr) != dirtyValues[i]) {
+                changed[count++] = addr;
+            }
+        }
+        dirtyCount = 0;
+        changed = Arrays.copyOf(changed, count);
+        Arrays.sort(changed);
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = state.get(changed[i]);
+        }
+        return new StateChange(currentPosition, changed, values);
+    }
+
+    private void fireStateChanged(StateChange change) {
+        for (Subscription subscription : List.copyOf(subscriptions)) {
+            subscription.listener().stateChanged(filter(change, subscription.from(), subscription.to()));
+        }
+    }
+
+    // the registers and the memory locations from from to to (incl.)
+    private static StateChange filter(StateChange change, int from, int to) {
+        int[] addresses = change.addresses();
+        int registers = 0;
+        while (registers < addresses.length && addresses[registers] < 0) {
+            registers ++;
+        }
+        int start = Math.max(registers, lowerBound(addresses, from));
+        int end = Math.max(start, lowerBound(addresses, to + 1));
+        if (start == registers && end == addresses.length) {
+            return change;
+        }
+        int[] resultAddresses = new int[registers + end - start];
+        int[] resultValues = new int[resultAddresses.length];
+        System.arraycopy(addresses, 0, resultAddresses, 0, registers);
+        System.arraycopy(change.values(), 0, resultValues, 0, registers);
+        System.arraycopy(addresses, start, resultAddresses, registers, end - start);
+        System.arraycopy(change.values(), start, resultValues, registers, end - start);
+        return new StateChange(change.position(), resultAddresses, resultValues);
+    }
+
+    // the index of the first element not less than key
+    private static int lowerBound(int[] sorted, int key) {
+        int index = Arrays.binarySearch(sorted, key);
+        return index < 0 ? -index - 1 : index;
+    }
+
     public State exposeState() {
         return state;
     }
@@ -62,15 +171,74 @@ public class Timeline {
         listeners.add(listener);
     }
 
+    public void removeListener(UpdateListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Inform the listener once after every change of the position. Only
+     * changed memory locations from from to to (incl.) are reported,
+     * changed registers always.
+     */
+    public void addStateListener(StateChangeListener listener, int from, int to) {
+        subscriptions.add(new Subscription(listener, from, to));
+    }
+
+    /**
+     * Inform the listener once after every change of the position about
+     * all changed locations.
+     */
+    public void addStateListener(StateChangeListener listener) {
+        addStateListener(listener, 0, Constants.ADDRESS_MASK);
+    }
+
+    public void removeStateListener(StateChangeListener listener) {
+        subscriptions.removeIf(subscription -> subscription.listener() == listener);
+    }
+
     public void addToPosition(int offset) {
         setPosition(currentPosition + offset);
     }
 
     public void setPosition(int position) {
+        Events.Seek event = new Events.Seek();
+        event.begin();
+        StateChange change = null;
+        recording.lock();
+        try {
+            int from = currentPosition;
+            long updates = seek(position);
+            if (event.shouldCommit()) {
+                event.from = from;
+                event.to = currentPosition;
+                event.updates = updates;
+            }
+            if (!subscriptions.isEmpty()) {
+                change = collectChanges();
+            }
+        } finally {
+            recording.unlock();
+        }
+        event.commit();
+        // not while holding the lock, the listeners may take their time
+        if (change != null) {
+            fireStateChanged(change);
+        }
+    }
+
+    // returns the number of updates applied from the trace
+    private long seek(int position) {
 
-        position = Math.min(updates.length, position);
+        position = Math.min(trace.countSteps(), position);
         position = Math.max(0, position);
 
+        int checkpoint = checkpoints.closestTo(position);
+        if (checkpoint >= 0 && Math.abs(position - checkpoint) < Math.abs(position - currentPosition)) {
+            checkpoints.restore(checkpoint, state, this::update);
+            currentPosition = checkpoint;
+        }
+        long updates = Math.abs(trace.getStepStart(position) - trace.getStepStart(currentPosition));
+
         if(currentPosition < position) {
             while(currentPosition < position) {
                 incrementPosition();
@@ -82,18 +250,22 @@ public class Timeline {
         }
 
         update(STEP, currentPosition);
+        return updates;
     }
 
     private void decrementPosition() {
         currentPosition--;
-        for (Update update : updates[currentPosition]) {
-            update(update.addr(), update.oldValue());
+        long start = trace.getStepStart(currentPosition);
+        // undo in reverse order
+        for (long i = trace.getStepStart(currentPosition + 1) - 1; i >= start; i--) {
+            update(trace.getAddr(i), trace.getOldValue(i));
         }
     }
 
     private void incrementPosition() {
-        for (Update update : updates[currentPosition]) {
-            update(update.addr(), update.newValue());
+        long end = trace.getStepStart(currentPosition + 1);
+        for (long i = trace.getStepStart(currentPosition); i < end; i++) {
+            update(trace.getAddr(i), trace.getNewValue(i));
         }
         currentPosition ++;
     }
@@ -107,36 +279,278 @@ public class Timeline {
     }
 
     public List<Command> getCommands() {
-        return Collections.unmodifiableList(commands);
+        return program.getCommands();
+    }
+
+    public ProgramImage getProgram() {
+        return program;
+    }
+
+    /**
+     * The profile of the recording. It is complete once the recording has
+     * finished.
+     *
+     * @return the profile, or null if profiling is not enabled
+     */
+    public Profile getProfile() {
+        return profile;
+    }
+
+    void setProfile(Profile profile) {
+        this.profile = profile;
     }
 
     public int get(int adr) {
         return state.get(adr);
     }
 
+    /**
+     * The number of recorded steps. This may grow while the timeline is
+     * being recorded.
+     */
     public int countStates() {
-        return updates.length;
+        recording.lock();
+        try {
+            return trace.countSteps();
+        } finally {
+            recording.unlock();
+        }
     }
 
-    public Command findIARCommand() {
-        for (Command command : commands) {
-            if(command.address() == state.get(State.IAR)) {
-                return command;
+    /**
+     * The value of a memory location at a position, without moving to that
+     * position.
+     */
+    public int getValueAt(int addr, int position) {
+        recording.lock();
+        try {
+            return writeIndex.getValue(addr, position, initialState.get(addr));
+        } finally {
+            recording.unlock();
+        }
+    }
+
+    /**
+     * The position at which the memory location has last been written up to
+     * the given position (incl.), i.e., the position after the writing
+     * step.
+     *
+     * @return the position, or -1 if the location has not been written
+     */
+    public int findPreviousWrite(int addr, int position) {
+        recording.lock();
+        try {
+            return writeIndex.findPrevious(addr, position);
+        } finally {
+            recording.unlock();
+        }
+    }
+
+    /**
+     * The first position after the given one at which the memory location
+     * has been written, i.e., the position after the writing step.
+     *
+     * @return the position, or -1 if the location is not written afterwards
+     */
+    public int findNextWrite(int addr, int position) {
+        recording.lock();
+        try {
+            return writeIndex.findNext(addr, position);
+        } finally {
+            recording.unlock();
+        }
+    }
+
+    /**
+     * Find the closest write after the current position (or before it if
+     * not forward) that matches the watchpoint. Memory locations are looked
+     * up in the write index, for registers the updates of the trace are
+     * scanned. The position does not change.
+     *
+     * @return the position after the writing step, or -1 if there is none
+     */
+    public int findWrite(Watchpoint watchpoint, boolean forward) {
+        recording.lock();
+        try {
+            int addr = watchpoint.addr();
+            if (addr >= 0) {
+                return writeIndex.find(watchpoint, currentPosition, forward, initialState.get(addr));
             }
+            if (forward) {
+                for (int step = currentPosition; step < trace.countSteps(); step++) {
+                    long end = trace.getStepStart(step + 1);
+                    for (long i = trace.getStepStart(step); i < end; i++) {
+                        if (trace.getAddr(i) == addr && watchpoint.matches(trace.getOldValue(i), trace.getNewValue(i))) {
+                            return step + 1;
+                        }
+                    }
+                }
+            } else {
+                for (int step = currentPosition - 2; step >= 0; step--) {
+                    long start = trace.getStepStart(step);
+                    for (long i = trace.getStepStart(step + 1) - 1; i >= start; i--) {
+                        if (trace.getAddr(i) == addr && watchpoint.matches(trace.getOldValue(i), trace.getNewValue(i))) {
+                            return step + 1;
+                        }
+                    }
+                }
+            }
+            return -1;
+        } finally {
+            recording.unlock();
         }
-        return null;
     }
 
-    public String getNameFor(int adr) {
-        for (Entry<String, Integer> entry : labelMap.entrySet()) {
-            if (entry.getValue() == adr) {
-                return entry.getKey();
+    /**
+     * Find the closest position after the current one (or before it if not
+     * forward) at which the IAR points to one of the given addresses. Only
+     * the IAR column of the trace is scanned, the position does not change.
+     *
+     * @return the position, or -1 if there is none
+     */
+    public int findIAR(BitSet addresses, boolean forward) {
+        recording.lock();
+        try {
+            if (forward) {
+                for (int position = currentPosition + 1; position <= trace.countSteps(); position++) {
+                    if (addresses.get(trace.getIar(position))) {
+                        return position;
+                    }
+                }
+            } else {
+                for (int position = currentPosition - 1; position > 0; position--) {
+                    if (addresses.get(trace.getIar(position))) {
+                        return position;
+                    }
+                }
+                if (currentPosition > 0 && addresses.get(initialState.get(State.IAR))) {
+                    return 0;
+                }
             }
+            return -1;
+        } finally {
+            recording.unlock();
         }
-        return null;
+    }
+
+    public int countWrites(int addr) {
+        recording.lock();
+        try {
+            return writeIndex.countWrites(addr);
+        } finally {
+            recording.unlock();
+        }
+    }
+
+    public Command findIARCommand() {
+        return program.getCommand(state.get(State.IAR));
+    }
+
+    public String getNameFor(int adr) {
+        return program.getLabel(adr);
     }
 
     public Map<String, Integer> getLabelMap() {
         return labelMap;
     }
+
+    /**
+     * The number of steps that a timeline starting in newInitialState has in
+     * common with this one. These are the steps before the first access to a
+     * memory location whose initial value differs. The last step is never
+     * counted, it may have ended the recording. The recording of this
+     * timeline must be finished.
+     */
+    int countCommonSteps(State newInitialState) {
+        if (trace.isReadOnly()) {
+            // loaded from a trace file, the trace cannot be continued
+            return 0;
+        }
+        if (initialState.get(State.IAR) != newInitialState.get(State.IAR)
+                || initialState.get(State.ACCU) != newInitialState.get(State.ACCU)) {
+            return 0;
+        }
+        int[] result = { trace.countSteps() - 1 };
+        initialState.forEachDifference(newInitialState,
+                addr -> result[0] = Math.min(result[0], accessLog.getFirstAccess(addr)));
+        return Math.max(0, result[0]);
+    }
+
+    /**
+     * The state at the given step of the timeline starting in
+     * newInitialState. The step must not exceed
+     * {@link #countCommonSteps(State)}.
+     */
+    State getCommonState(int step, State newInitialState) {
+        setPosition(step);
+        State result = new State(state);
+        initialState.forEachDifference(newInitialState,
+                addr -> result.set(addr, newInitialState.get(addr)));
+        return result;
+    }
+
+    /**
+     * Continue the recording of this timeline from the given step on with
+     * a different initial state. The steps up to there are kept, the step
+     * must not exceed {@link #countCommonSteps(State)}. The trace is handed
+     * over to the returned builder, this timeline must not be used
+     * afterwards.
+     */
+    TimelineBuilder resume(int step, State newInitialState, String fileContent,
+                           Map<String, Integer> labelMap, ProgramImage program) {
+        listeners.clear();
+        subscriptions.clear();
+        setPosition(step);
+        trace.truncate(step);
+        checkpoints.truncate(step);
+        accessLog.truncate(step);
+        writeIndex.truncate(step);
+        initialState.forEachDifference(newInitialState, addr -> {
+            int value = newInitialState.get(addr);
+            state.set(addr, value);
+            checkpoints.patch(addr, value);
+        });
+        resumed = true;
+        return new TimelineBuilder(fileContent, labelMap, program, new State(newInitialState), state,
+                trace, checkpoints, accessLog, writeIndex);
+    }
+
+    /**
+     * Write this timeline to a trace file, see {@link TraceFile}. The
+     * recording must be finished.
+     */
+    public void save(Path path) throws IOException {
+        recording.lock();
+        try {
+            TraceFile.write(path, trace, checkpoints, accessLog, writeIndex, initialState, fileContent, labelMap);
+        } finally {
+            recording.unlock();
+        }
+    }
+
+    /**
+     * Release resources held by the trace. The timeline must not be used
+     * afterwards.
+     */
+    public void close() {
+        if (!resumed) {
+            trace.close();
+        }
+    }
+
+    public String getMemoryStatistics() {
+        recording.lock();
+        try {
+            return String.format("%d steps, %d updates, ~%d KiB trace (+%d KiB on disk); " +
+                            "%d checkpoints every %d steps, ~%d KiB snapshots; " +
+                            "%d indexed writes (in the trace), ~%d KiB index; %d memory pages",
+                    trace.countSteps(), trace.countUpdates(), trace.getByteSize() / 1024,
+                    trace.getSpilledByteSize() / 1024,
+                    checkpoints.size(), checkpoints.getInterval(), checkpoints.getByteSize() / 1024,
+                    writeIndex.getWriteCount(), writeIndex.getByteSize() / 1024,
+                    state.countPages());
+        } finally {
+            recording.unlock();
+        }
+    }
 }
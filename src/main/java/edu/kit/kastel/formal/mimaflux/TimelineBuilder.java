@@ -14,42 +14,117 @@
  */
 package edu.kit.kastel.formal.mimaflux;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class TimelineBuilder {
 
-    private final List<Update[]> updates = new ArrayList<>();
-
-    private List<Update> curUpdates = new ArrayList<>();
+    private final TraceStore trace;
 
     private final String fileContent;
     private final Map<String, Integer> labelMap;
-    private final List<Command> commands;
-    private final Map<Integer, Integer> initialValues;
+    private final ProgramImage program;
+    private final State initialState;
     private final State state;
+    private final Checkpoints checkpoints;
+    private final AccessLog accessLog;
+    private final WriteIndex writeIndex;
+    private LoopDetector loopDetector;
+    private Profile profile;
+
+    // held while steps are recorded, fair such that readers get their turn
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private Timeline timeline;
+
+    public TimelineBuilder(String fileContent, Map<String, Integer> labelMap, ProgramImage program, State state) {
+        this(fileContent, labelMap, program, state, new TraceStore(MimaFlux.mmargs.traceMemory * 1024L * 1024L));
+    }
+
+    // the write index keeps its records in the trace
+    private TimelineBuilder(String fileContent, Map<String, Integer> labelMap, ProgramImage program, State state,
+                            TraceStore trace) {
+        this(fileContent, labelMap, program, new State(state), state, trace,
+                new Checkpoints(MimaFlux.mmargs.checkpointInterval), new AccessLog(), new WriteIndex(trace));
+        checkpoints.take(state);
+    }
 
-    public TimelineBuilder(String fileContent, Map<String, Integer> labelMap, List<Command> commands, Map<Integer, Integer> initialValues) {
+    /**
+     * Continue recording after the steps already contained in trace.
+     *
+     * @param initialState the state at step 0
+     * @param state the state after the recorded steps
+     */
+    TimelineBuilder(String fileContent, Map<String, Integer> labelMap, ProgramImage program,
+                    State initialState, State state, TraceStore trace, Checkpoints checkpoints,
+                    AccessLog accessLog, WriteIndex writeIndex) {
         this.fileContent = fileContent;
         this.labelMap = labelMap;
-        this.commands = commands;
-        this.initialValues = initialValues;
-        this.state = new State(commands, initialValues);
-        int start = labelMap.getOrDefault(Constants.START_LABEL, 0);
-        state.set(State.IAR, start);
+        this.program = program;
+        this.initialState = initialState;
+        this.state = state;
+        this.trace = trace;
+        this.checkpoints = checkpoints;
+        this.accessLog = accessLog;
+        this.writeIndex = writeIndex;
+    }
+
+    /**
+     * Needs to be called when the instruction at addr is executed.
+     */
+    public void execute(int addr) {
+        accessLog.access(addr, trace.countSteps());
+        if (profile != null) {
+            profile.executed(addr);
+        }
+    }
+
+    /**
+     * Read the memory at addr as an operand of the current step.
+     */
+    public int read(int addr) {
+        accessLog.access(addr, trace.countSteps());
+        if (profile != null) {
+            profile.read(addr);
+        }
+        return state.read(addr);
     }
 
     public void set(int addr, int val) {
         int curVal = state.get(addr);
-        curUpdates.add(new Update(addr, curVal, val));
+        trace.add(addr, curVal, val);
+        if (addr >= 0) {
+            accessLog.access(addr, trace.countSteps());
+            writeIndex.add(addr, trace.countSteps() + 1, val);
+            if (profile != null) {
+                profile.written(addr);
+            }
+        }
+        if (loopDetector != null && addr >= 0) {
+            loopDetector.update(addr, curVal, val);
+        }
+        checkpoints.touch(addr, state);
         state.set(addr, val);
     }
 
     public void commit() {
-        updates.add(curUpdates.toArray(Update[]::new));
-        curUpdates.clear();
+        trace.commit(state.get(State.IAR));
+        if (checkpoints.getInterval() > 0 && trace.countSteps() % checkpoints.getInterval() == 0) {
+            checkpoints.take(state);
+        }
+    }
+
+    /**
+     * Report all memory writes to the detector from now on.
+     */
+    public void setLoopDetector(LoopDetector loopDetector) {
+        this.loopDetector = loopDetector;
+    }
+
+    /**
+     * Count the executed instructions and memory accesses from now on.
+     */
+    public void setProfile(Profile profile) {
+        this.profile = profile;
     }
 
     public void incIAR() {
@@ -57,15 +132,54 @@ public class TimelineBuilder {
     }
 
     public int size() {
-        return updates.size();
+        return trace.countSteps();
+    }
+
+    public long countUpdates() {
+        return trace.countUpdates();
+    }
+
+    /**
+     * The bytes taken by the recorded trace, in memory and spilled to disk.
+     */
+    public long getTraceByteSize() {
+        return trace.getByteSize() + trace.getSpilledByteSize();
     }
 
     public State exposeState() {
         return state;
     }
 
+    /**
+     * Prevent the timeline from reading the recording until
+     * {@link #publish()} or {@link #finishRecording()} is called.
+     */
+    public void startRecording() {
+        lock.lock();
+    }
+
+    /**
+     * Let the timeline see the steps recorded so far.
+     */
+    public void publish() {
+        lock.unlock();
+        lock.lock();
+    }
+
+    public void finishRecording() {
+        lock.unlock();
+    }
+
+    /**
+     * The timeline of this builder. It may be obtained before the recording
+     * is finished; it then grows with every call to {@link #publish()}.
+     */
     public Timeline build() {
-        Update[][] array = updates.toArray(Update[][]::new);
-        return new Timeline(array, fileContent, labelMap, commands, initialValues);
+        if (timeline == null) {
+            timeline = new Timeline(trace, checkpoints, accessLog, writeIndex, lock, initialState,
+                    fileContent, labelMap, program);
+            timeline.setProfile(profile);
+        }
+        return timeline;
     }
 }
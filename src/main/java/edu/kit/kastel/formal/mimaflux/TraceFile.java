@@ -0,0 +1,279 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reading and writing timelines as trace files, such that a long run can
+ * be looked at again without executing the program again.
+ *
+ * A trace file (version 1) consists of
+ * <ol>
+ *     <li>the magic bytes "MIMAFLUX", the version, {@link TraceStore#CHUNK_BITS}
+ *     and the byte offset of the first chunk (int, int, int, long),</li>
+ *     <li>the SHA-256 hash of the program text and the program text itself
+ *     (UTF-8, preceded by its length),</li>
+ *     <li>the label map (number of labels, then name and value of each, the
+ *     names like the program text),</li>
+ *     <li>the initial state (IAR, ACCU, number of non-zero memory locations,
+ *     then address and value of each),</li>
+ *     <li>the pages of the {@link AccessLog},</li>
+ *     <li>the {@link Checkpoints} (see {@link Checkpoints#write(java.io.DataOutput)}),</li>
+ *     <li>the number of steps and updates, and the seek index: the first
+ *     update of every chunk of steps (see {@link TraceStore#getStepChunkBases()}),</li>
+ *     <li>the number of write records and the last write of every address
+ *     written (see {@link WriteIndex#write(java.io.DataOutput)}),</li>
+ *     <li>zeroes up to the next multiple of the chunk size,</li>
+ *     <li>the chunks of the update log and the write records as written by
+ *     {@link TraceStore#writeChunks(OutputStream)}.</li>
+ * </ol>
+ * All numbers are big-endian. The chunks are not read when loading a
+ * trace file but mapped into memory, only the header is read. A loaded
+ * timeline uses the checkpoint interval of the recording.
+ */
+public final class TraceFile {
+
+    public static final String EXTENSION = "mtrace";
+
+    private static final byte[] MAGIC = "MIMAFLUX".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int CHUNK_BYTES = 4 * TraceStore.CHUNK_SIZE;
+    // magic, version, chunk bits and the offset of the first chunk
+    private static final int PREAMBLE = 8 + 4 + 4 + 8;
+
+    private TraceFile() {
+        throw new Error();
+    }
+
+    static void write(Path path, TraceStore trace, Checkpoints checkpoints, AccessLog accessLog,
+                      WriteIndex writeIndex, State initialState, String fileContent, Map<String, Integer> labelMap) throws IOException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+
+        byte[] program = fileContent.getBytes(StandardCharsets.UTF_8);
+        header.write(hash(program));
+        header.writeInt(program.length);
+        header.write(program);
+
+        header.writeInt(labelMap.size());
+        for (Map.Entry<String, Integer> entry : labelMap.entrySet()) {
+            byte[] label = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            header.writeInt(label.length);
+            header.write(label);
+            header.writeInt(entry.getValue());
+        }
+
+        header.writeInt(initialState.get(State.IAR));
+        header.writeInt(initialState.get(State.ACCU));
+        List<Integer> addresses = new ArrayList<>();
+        initialState.forEachDifference(new State(List.of(), Map.of()), addresses::add);
+        header.writeInt(addresses.size());
+        for (int addr : addresses) {
+            header.writeInt(addr);
+            header.writeInt(initialState.get(addr));
+        }
+
+        accessLog.write(header);
+        checkpoints.write(header);
+
+        header.writeInt(trace.countSteps());
+        header.writeLong(trace.countUpdates());
+        long[] stepChunkBases = trace.getStepChunkBases();
+        header.writeInt(stepChunkBases.length);
+        for (long base : stepChunkBases) {
+            header.writeLong(base);
+        }
+
+        header.writeInt(trace.countWrites());
+        writeIndex.write(header);
+
+        long dataStart = roundUp(PREAMBLE + headerBytes.size());
+        // the file may be mapped by a loaded timeline, it must not be overwritten in place
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp), CHUNK_BYTES))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(TraceStore.CHUNK_BITS);
+            out.writeLong(dataStart);
+            headerBytes.writeTo(out);
+            out.write(new byte[(int) (dataStart - PREAMBLE - headerBytes.size())]);
+            trace.writeChunks(out);
+        } catch (IOException e) {
+            // the file does not exist if it could not be created
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException deleteException) {
+                e.addSuppressed(deleteException);
+            }
+            throw e;
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        MimaFlux.log(" ---- Trace written to " + path);
+    }
+
+    /**
+     * Load a timeline from a trace file. It is positioned at step 0 and
+     * cannot be continued when the program is edited.
+     *
+     * @throws IOException if the file cannot be read or is not a trace file
+     *                     of this version
+     */
+    public static Timeline load(Path path) throws IOException {
+        String fileContent;
+        Map<String, Integer> labelMap = new HashMap<>();
+        State initialState = new State(List.of(), Map.of());
+        AccessLog accessLog;
+        Checkpoints checkpoints;
+        ByteBuffer writeIndexBytes;
+        int writeCount;
+        int stepCount;
+        long updateCount;
+        long[] stepChunkBases;
+        long dataStart;
+        long fileSize;
+        ByteBuffer header;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE);
+            while (preamble.hasRemaining() && channel.read(preamble) >= 0) {
+                // read on
+            }
+            preamble.flip();
+            byte[] magic = new byte[MAGIC.length];
+            if (preamble.remaining() == PREAMBLE) {
+                preamble.get(magic);
+            }
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(path + " is not a trace file.");
+            }
+            if (preamble.getInt() != VERSION || preamble.getInt() != TraceStore.CHUNK_BITS) {
+                throw new IOException(path + " has been written by a different version of mima flux.");
+            }
+            dataStart = preamble.getLong();
+            // a header of more than 2 GiB cannot be mapped
+            if (dataStart % CHUNK_BYTES != 0 || dataStart < PREAMBLE || dataStart > channel.size()
+                    || dataStart - PREAMBLE > Integer.MAX_VALUE) {
+                throw new IOException(path + " is corrupt or truncated.");
+            }
+            // the header is read in one go, it can be large if many locations have been accessed
+            header = channel.map(MapMode.READ_ONLY, PREAMBLE, dataStart - PREAMBLE);
+            fileSize = channel.size();
+        }
+
+        try {
+            byte[] hash = new byte[32];
+            header.get(hash);
+            byte[] program = new byte[header.getInt()];
+            header.get(program);
+            if (!Arrays.equals(hash, hash(program))) {
+                throw new IOException(path + " is corrupt, the program does not match its hash.");
+            }
+            fileContent = new String(program, StandardCharsets.UTF_8);
+
+            int labels = header.getInt();
+            for (int i = 0; i < labels; i++) {
+                byte[] label = new byte[header.getInt()];
+                header.get(label);
+                labelMap.put(new String(label, StandardCharsets.UTF_8), header.getInt());
+            }
+
+            initialState.set(State.IAR, header.getInt());
+            initialState.set(State.ACCU, header.getInt());
+            int values = header.getInt();
+            for (int i = 0; i < values; i++) {
+                initialState.set(header.getInt(), header.getInt());
+            }
+
+            accessLog = AccessLog.read(header);
+            try {
+                checkpoints = Checkpoints.read(header);
+            } catch (IOException e) {
+                throw new IOException(path + " is corrupt.", e);
+            }
+
+            stepCount = header.getInt();
+            updateCount = header.getLong();
+            stepChunkBases = new long[header.getInt()];
+            for (int i = 0; i < stepChunkBases.length; i++) {
+                stepChunkBases[i] = header.getLong();
+            }
+
+            // read once the records are mapped
+            writeCount = header.getInt();
+            writeIndexBytes = header.slice();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException(path + " is corrupt.", e);
+        }
+
+        long updateChunks = (updateCount + TraceStore.CHUNK_SIZE - 1) / TraceStore.CHUNK_SIZE;
+        long writeChunks = (writeCount + TraceStore.CHUNK_SIZE - 1L) / TraceStore.CHUNK_SIZE;
+        if (writeCount < 0 || fileSize < dataStart
+                + CHUNK_BYTES * (3 * updateChunks + 2L * stepChunkBases.length + 5 * writeChunks)) {
+            throw new IOException(path + " is corrupt or truncated.");
+        }
+        TraceStore trace = TraceStore.map(SpillFile.map(path, TraceStore.CHUNK_SIZE),
+                dataStart / CHUNK_BYTES, stepCount, updateCount, stepChunkBases, writeCount);
+        WriteIndex writeIndex;
+        try {
+            writeIndex = WriteIndex.read(writeIndexBytes, trace);
+        } catch (BufferUnderflowException | IOException e) {
+            throw new IOException(path + " is corrupt.", e);
+        }
+
+        Interpreter interpreter = new Interpreter();
+        interpreter.parseString(fileContent);
+        ProgramImage programImage = new ProgramImage(interpreter.getProgram().getCommands(), labelMap);
+
+        MimaFlux.log(" ---- Loaded " + stepCount + " steps from " + path);
+        return new Timeline(trace, checkpoints, accessLog, writeIndex, new ReentrantLock(true),
+                initialState, fileContent, labelMap, programImage);
+    }
+
+    private static long roundUp(long bytes) {
+        return (bytes + CHUNK_BYTES - 1) / CHUNK_BYTES * CHUNK_BYTES;
+    }
+
+    private static byte[] hash(byte[] program) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(program);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The updates of a timeline stored in primitive arrays.
+ *
+ * Every update consists of an address, the value before and the value after
+ * the update. They are stored in parallel chunks of {@link #CHUNK_SIZE}
+ * entries each. A step is the range of updates between two calls to
+ * {@link #commit(int)}; the index of its first update is stored relative to the
+ * beginning of its chunk of steps. The value of the IAR after every step is
+ * stored as well, such that positions can be searched by the executed
+ * address without replaying the updates.
+ *
+ * The store also holds the records of the {@link WriteIndex}: for every
+ * memory write its position and value, and the links by which the writes to
+ * the same address are searched.
+ *
+ * If a heap budget is given, sealed chunks beyond that budget are moved to a
+ * {@link SpillFile}, oldest first, and read back from there on demand.
+ * A store loaded from a {@link TraceFile} has all its chunks in the mapped
+ * file and is read-only.
+ *
+ * Updates are numbered by long indices, steps by int indices.
+ */
+public class TraceStore {
+
+    public static final int CHUNK_BITS = 12;
+    public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int COLUMNS = 10;
+
+    private final Column addrs;
+    private final Column oldValues;
+    private final Column newValues;
+    private long updateCount;
+
+    // for every chunk of steps: the index of the first update of the chunk,
+    // and for every step the offset of its first update relative to that.
+    private long[] stepChunkBases = new long[16];
+    private final Column stepOffsets;
+    private int stepCount;
+
+    // the IAR after step n - 1 at index n, index 0 is unused
+    private final Column iars;
+
+    // the records of the WriteIndex, see there
+    private final Column writePositions;
+    private final Column writeValues;
+    private final Column writePrevious;
+    private final Column writeJumps;
+    private final Column writeOrdinals;
+    private int writeCount;
+
+    private SpillFile spillFile;
+
+    /**
+     * A chunked column of ints. Chunks below {@link #spilled} live in the
+     * spill file.
+     */
+    private class Column {
+        private int[][] chunks = new int[16][];
+        private long[] slots = new long[16];
+        private int spilled;
+        private final int heapChunks;
+
+        Column(int heapChunks) {
+            this.heapChunks = heapChunks;
+        }
+
+        void set(int chunk, int offset, int value) {
+            if (chunk == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunk * 2);
+                slots = Arrays.copyOf(slots, chunk * 2);
+            }
+            if (chunks[chunk] == null) {
+                chunks[chunk] = new int[CHUNK_SIZE];
+                if (chunk - spilled >= heapChunks) {
+                    spillOldest();
+                }
+            }
+            chunks[chunk][offset] = value;
+        }
+
+        int get(int chunk, int offset) {
+            int[] array = chunks[chunk];
+            if (array != null) {
+                return array[offset];
+            }
+            return spillFile.read(slots[chunk], offset);
+        }
+
+        // chunks that have never been written are copied as zeroes
+        void copyChunk(int chunk, int[] dest) {
+            if (chunk < chunks.length && chunks[chunk] != null) {
+                System.arraycopy(chunks[chunk], 0, dest, 0, CHUNK_SIZE);
+            } else if (chunk < spilled) {
+                for (int i = 0; i < CHUNK_SIZE; i++) {
+                    dest[i] = spillFile.read(slots[chunk], i);
+                }
+            } else {
+                Arrays.fill(dest, 0);
+            }
+        }
+
+        // the given number of chunks are in the spill file, every stride-th slot
+        void map(long firstSlot, int stride, int count) {
+            chunks = new int[Math.max(16, count)][];
+            slots = new long[chunks.length];
+            for (int i = 0; i < count; i++) {
+                slots[i] = firstSlot + (long) i * stride;
+            }
+            spilled = count;
+        }
+
+        private void spillOldest() {
+            if (spillFile == null) {
+                spillFile = new SpillFile(CHUNK_SIZE);
+            }
+            slots[spilled] = spillFile.write(chunks[spilled]);
+            chunks[spilled] = null;
+            spilled ++;
+        }
+
+        /**
+         * Keep the chunks below the given one, bring the given one back to
+         * the heap and drop the ones above.
+         */
+        void truncate(int chunk) {
+            if (chunk < spilled) {
+                int[] array = new int[CHUNK_SIZE];
+                for (int i = 0; i < CHUNK_SIZE; i++) {
+                    array[i] = spillFile.read(slots[chunk], i);
+                }
+                chunks[chunk] = array;
+                spilled = chunk;
+            }
+            for (int i = chunk + 1; i < chunks.length; i++) {
+                chunks[i] = null;
+            }
+        }
+
+        long countHeapChunks() {
+            long result = 0;
+            for (int[] chunk : chunks) {
+                if (chunk != null) {
+                    result ++;
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Create a store that keeps all chunks on the heap.
+     */
+    public TraceStore() {
+        this(0);
+    }
+
+    /**
+     * Create a store that keeps roughly at most the given number of bytes on
+     * the heap and spills the rest to a temporary file.
+     *
+     * @param heapBytes the budget, 0 for no limit
+     */
+    public TraceStore(long heapBytes) {
+        int heapChunks;
+        if (heapBytes <= 0) {
+            heapChunks = Integer.MAX_VALUE;
+        } else {
+            // at least the current and the previous chunk of every column
+            heapChunks = (int) Math.max(2, heapBytes / (4L * CHUNK_SIZE * COLUMNS));
+        }
+        this.addrs = new Column(heapChunks);
+        this.oldValues = new Column(heapChunks);
+        this.newValues = new Column(heapChunks);
+        this.stepOffsets = new Column(heapChunks);
+        this.iars = new Column(heapChunks);
+        this.writePositions = new Column(heapChunks);
+        this.writeValues = new Column(heapChunks);
+        this.writePrevious = new Column(heapChunks);
+        this.writeJumps = new Column(heapChunks);
+        this.writeOrdinals = new Column(heapChunks);
+    }
+
+    /**
+     * Create a read-only store whose chunks are in a mapped file, in the
+     * layout written by {@link #writeChunks(OutputStream)}.
+     *
+     * @param firstSlot the slot of the first chunk in the file
+     * @param stepChunkBases as returned by {@link #getStepChunkBases()}
+     */
+    public static TraceStore map(SpillFile file, long firstSlot, int stepCount, long updateCount,
+                                 long[] stepChunkBases, int writeCount) {
+        TraceStore result = new TraceStore();
+        result.spillFile = file;
+        result.stepCount = stepCount;
+        result.updateCount = updateCount;
+        result.stepChunkBases = Arrays.copyOf(stepChunkBases, Math.max(16, stepChunkBases.length));
+        int updateChunks = result.countUpdateChunks();
+        result.addrs.map(firstSlot, 3, updateChunks);
+        result.oldValues.map(firstSlot + 1, 3, updateChunks);
+        result.newValues.map(firstSlot + 2, 3, updateChunks);
+        long stepSlot = firstSlot + 3L * updateChunks;
+        result.stepOffsets.map(stepSlot, 2, result.countStepChunks());
+        result.iars.map(stepSlot + 1, 2, result.countStepChunks());
+        result.writeCount = writeCount;
+        int writeChunks = result.countWriteChunks();
+        long writeSlot = stepSlot + 2L * result.countStepChunks();
+        result.writePositions.map(writeSlot, 5, writeChunks);
+        result.writeValues.map(writeSlot + 1, 5, writeChunks);
+        result.writePrevious.map(writeSlot + 2, 5, writeChunks);
+        result.writeJumps.map(writeSlot + 3, 5, writeChunks);
+        result.writeOrdinals.map(writeSlot + 4, 5, writeChunks);
+        return result;
+    }
+
+    public void add(int addr, int oldValue, int newValue) {
+        int chunk = (int) (updateCount >> CHUNK_BITS);
+        int offset = (int) (updateCount & CHUNK_MASK);
+        addrs.set(chunk, offset, addr);
+        oldValues.set(chunk, offset, oldValue);
+        newValues.set(chunk, offset, newValue);
+        updateCount ++;
+    }
+
+    /**
+     * Close the current step. All updates added since the last commit
+     * belong to it.
+     *
+     * @param iar the value of the IAR after the step
+     */
+    public void commit(int iar) {
+        // The start of step n+1 is stored at index n+1, the start of step 0 is implicit.
+        int next = stepCount + 1;
+        int chunk = next >> CHUNK_BITS;
+        int offset = next & CHUNK_MASK;
+        if (offset == 0) {
+            if (chunk == stepChunkBases.length) {
+                stepChunkBases = Arrays.copyOf(stepChunkBases, chunk * 2);
+            }
+            stepChunkBases[chunk] = updateCount;
+        }
+        stepOffsets.set(chunk, offset, (int) (updateCount - stepChunkBases[chunk]));
+        iars.set(chunk, offset, iar);
+        stepCount = next;
+    }
+
+    public int countSteps() {
+        return stepCount;
+    }
+
+    public long countUpdates() {
+        return updateCount;
+    }
+
+    /**
+     * The index of the first update of the given step. The updates of step
+     * s are those from {@code getStepStart(s)} (incl.) to
+     * {@code getStepStart(s+1)} (excl.).
+     */
+    public long getStepStart(int step) {
+        if (step == 0) {
+            return 0;
+        }
+        int chunk = step >> CHUNK_BITS;
+        return stepChunkBases[chunk] + stepOffsets.get(chunk, step & CHUNK_MASK);
+    }
+
+    /**
+     * The value of the IAR after the given number of steps, position must
+     * be at least 1.
+     */
+    public int getIar(int position) {
+        return iars.get(position >> CHUNK_BITS, position & CHUNK_MASK);
+    }
+
+    public int getAddr(long update) {
+        return addrs.get((int) (update >> CHUNK_BITS), (int) (update & CHUNK_MASK));
+    }
+
+    public int getOldValue(long update) {
+        return oldValues.get((int) (update >> CHUNK_BITS), (int) (update & CHUNK_MASK));
+    }
+
+    public int getNewValue(long update) {
+        return newValues.get((int) (update >> CHUNK_BITS), (int) (update & CHUNK_MASK));
+    }
+
+    /**
+     * Add the record of a memory write.
+     *
+     * @return the index of the record
+     */
+    public int addWrite(int position, int value, int previous, int jump, int ordinal) {
+        int chunk = writeCount >> CHUNK_BITS;
+        int offset = writeCount & CHUNK_MASK;
+        writePositions.set(chunk, offset, position);
+        writeValues.set(chunk, offset, value);
+        writePrevious.set(chunk, offset, previous);
+        writeJumps.set(chunk, offset, jump);
+        writeOrdinals.set(chunk, offset, ordinal);
+        return writeCount ++;
+    }
+
+    public int countWrites() {
+        return writeCount;
+    }
+
+    public int getWritePosition(int write) {
+        return writePositions.get(write >> CHUNK_BITS, write & CHUNK_MASK);
+    }
+
+    public int getWriteValue(int write) {
+        return writeValues.get(write >> CHUNK_BITS, write & CHUNK_MASK);
+    }
+
+    public int getWritePrevious(int write) {
+        return writePrevious.get(write >> CHUNK_BITS, write & CHUNK_MASK);
+    }
+
+    public int getWriteJump(int write) {
+        return writeJumps.get(write >> CHUNK_BITS, write & CHUNK_MASK);
+    }
+
+    public int getWriteOrdinal(int write) {
+        return writeOrdinals.get(write >> CHUNK_BITS, write & CHUNK_MASK);
+    }
+
+    /**
+     * Remove the records of all writes from the given one on.
+     */
+    public void truncateWrites(int write) {
+        writeCount = write;
+        int chunk = write >> CHUNK_BITS;
+        writePositions.truncate(chunk);
+        writeValues.truncate(chunk);
+        writePrevious.truncate(chunk);
+        writeJumps.truncate(chunk);
+        writeOrdinals.truncate(chunk);
+    }
+
+    /**
+     * Remove all steps from the given one on, such that recording can
+     * continue after step - 1. Chunks removed from the spill file are not
+     * reclaimed.
+     */
+    public void truncate(int step) {
+        updateCount = getStepStart(step);
+        stepCount = step;
+        int chunk = (int) (updateCount >> CHUNK_BITS);
+        addrs.truncate(chunk);
+        oldValues.truncate(chunk);
+        newValues.truncate(chunk);
+        // the next commit writes the start of step + 1
+        stepOffsets.truncate((step + 1) >> CHUNK_BITS);
+        iars.truncate((step + 1) >> CHUNK_BITS);
+    }
+
+    private int countUpdateChunks() {
+        return (int) ((updateCount + CHUNK_MASK) >> CHUNK_BITS);
+    }
+
+    private int countWriteChunks() {
+        return (writeCount + CHUNK_MASK) >> CHUNK_BITS;
+    }
+
+    // the chunk of step n holds the start of step n, chunk 0 always exists
+    private int countStepChunks() {
+        return (stepCount >> CHUNK_BITS) + 1;
+    }
+
+    /**
+     * For every chunk of steps, the index of the update with which the
+     * first step of the chunk starts.
+     */
+    public long[] getStepChunkBases() {
+        return Arrays.copyOf(stepChunkBases, countStepChunks());
+    }
+
+    /**
+     * Write all chunks: first the addresses, old and new values of every
+     * chunk of updates, then the step offsets and IARs of every chunk of
+     * steps, then the five columns of every chunk of writes. Every chunk takes {@code 4 * CHUNK_SIZE} bytes, big-endian.
+     */
+    public void writeChunks(OutputStream out) throws IOException {
+        writeChunks(out, countUpdateChunks(), addrs, oldValues, newValues);
+        writeChunks(out, countStepChunks(), stepOffsets, iars);
+        writeChunks(out, countWriteChunks(), writePositions, writeValues, writePrevious,
+                writeJumps, writeOrdinals);
+    }
+
+    // the columns chunk by chunk, interleaved
+    private static void writeChunks(OutputStream out, int count, Column... columns) throws IOException {
+        int[] chunk = new int[CHUNK_SIZE];
+        ByteBuffer buffer = ByteBuffer.allocate(4 * CHUNK_SIZE);
+        for (int i = 0; i < count; i++) {
+            for (Column column : columns) {
+                column.copyChunk(i, chunk);
+                buffer.clear();
+                buffer.asIntBuffer().put(chunk);
+                out.write(buffer.array());
+            }
+        }
+    }
+
+    /**
+     * Whether this store has been loaded from a trace file. It cannot be
+     * truncated or extended.
+     */
+    public boolean isReadOnly() {
+        return spillFile != null && spillFile.isReadOnly();
+    }
+
+    /**
+     * Approximate number of bytes occupied by the chunks on the heap.
+     */
+    public long getByteSize() {
+        long chunks = addrs.countHeapChunks() + oldValues.countHeapChunks()
+                + newValues.countHeapChunks() + stepOffsets.countHeapChunks()
+                + iars.countHeapChunks() + writePositions.countHeapChunks()
+                + writeValues.countHeapChunks() + writePrevious.countHeapChunks()
+                + writeJumps.countHeapChunks() + writeOrdinals.countHeapChunks();
+        return chunks * (16 + 4L * CHUNK_SIZE) + 8L * stepChunkBases.length;
+    }
+
+    /**
+     * Number of bytes that have been moved to the spill file.
+     */
+    public long getSpilledByteSize() {
+        return spillFile == null ? 0 : spillFile.getByteSize();
+    }
+
+    /**
+     * Release the spill file. The store must not be used afterwards.
+     */
+    public void close() {
+        if (spillFile != null) {
+            spillFile.close();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+/**
+ * A condition on the writes to a memory location or register. A timeline
+ * can jump directly to the next or previous write that meets it, see
+ * {@link Timeline#findWrite(Watchpoint, boolean)}.
+ *
+ * @param addr the memory location, or {@link State#ACCU} or {@link State#IAR}
+ * @param kind the condition
+ * @param value the value compared against by {@link Kind#EQUALS}
+ */
+public record Watchpoint(int addr, Kind kind, int value) {
+
+    public enum Kind {
+        /** the value changes */
+        CHANGES,
+        /** the written value equals the given one */
+        EQUALS,
+        /** the sign bit changes */
+        CROSSES_SIGN
+    }
+
+    public boolean matches(int oldValue, int newValue) {
+        switch (kind) {
+            case CHANGES: return oldValue != newValue;
+            case EQUALS: return newValue == value;
+            case CROSSES_SIGN: return ((oldValue ^ newValue) & Constants.SIGNBIT) != 0;
+            default: throw new IllegalStateException();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * For every memory location, the positions of a timeline at which it has
+ * been written, together with the written values.
+ *
+ * A write in step s is recorded at position s + 1, the first position at
+ * which the new value is visible. The records of the writes are kept in the
+ * {@link TraceStore} of the timeline, such that they count against its heap
+ * budget and are spilled with it. The writes to an address form a list from
+ * the last one backwards; every record also has its ordinal number within the
+ * list and a jump pointer to an earlier write (skew-binary, as in Myers'
+ * random access lists). The value at a position and the neighbouring writes
+ * are thus found in a logarithmic number of steps without replaying the
+ * timeline.
+ *
+ * Only the last write of every address is kept here, like the memory in
+ * {@link State} in lazily allocated pages.
+ */
+public class WriteIndex {
+
+    public static final int NONE = -1;
+
+    private static final int PAGE_MASK = State.PAGE_SIZE - 1;
+
+    // writes fetched at once when searching forward
+    private static final int BLOCK_SIZE = 256;
+
+    private final TraceStore trace;
+
+    // the record of the last write to every address, or NONE
+    private final int[][] pages = new int[Constants.ADDRESS_RANGE >> State.PAGE_BITS][];
+
+    public WriteIndex(TraceStore trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Record a write. Positions must not decrease between calls.
+     */
+    public void add(int addr, int position, int value) {
+        int[] page = pages[addr >> State.PAGE_BITS];
+        if (page == null) {
+            page = new int[State.PAGE_SIZE];
+            Arrays.fill(page, NONE);
+            pages[addr >> State.PAGE_BITS] = page;
+        }
+        int previous = page[addr & PAGE_MASK];
+        int ordinal;
+        int jump;
+        if (previous == NONE) {
+            ordinal = 0;
+            jump = trace.countWrites();
+        } else {
+            int previousOrdinal = trace.getWriteOrdinal(previous);
+            int previousJump = trace.getWriteJump(previous);
+            int jumpOrdinal = trace.getWriteOrdinal(previousJump);
+            int secondJump = trace.getWriteJump(previousJump);
+            ordinal = previousOrdinal + 1;
+            if (previousOrdinal - jumpOrdinal == jumpOrdinal - trace.getWriteOrdinal(secondJump)) {
+                jump = secondJump;
+            } else {
+                jump = previous;
+            }
+        }
+        page[addr & PAGE_MASK] = trace.addWrite(position, value, previous, jump, ordinal);
+    }
+
+    private int getLast(int addr) {
+        int[] page = pages[addr >> State.PAGE_BITS];
+        return page == null ? NONE : page[addr & PAGE_MASK];
+    }
+
+    // the last write at or before position, starting from write, NONE if there is none
+    private int floor(int write, int position) {
+        while (write != NONE && trace.getWritePosition(write) > position) {
+            int jump = trace.getWriteJump(write);
+            if (jump != write && trace.getWritePosition(jump) > position) {
+                write = jump;
+            } else {
+                write = trace.getWritePrevious(write);
+            }
+        }
+        return write;
+    }
+
+    // the write with the given ordinal, which must not be greater than that of write
+    private int ancestor(int write, int ordinal) {
+        while (trace.getWriteOrdinal(write) > ordinal) {
+            int jump = trace.getWriteJump(write);
+            if (trace.getWriteOrdinal(jump) >= ordinal) {
+                write = jump;
+            } else {
+                write = trace.getWritePrevious(write);
+            }
+        }
+        return write;
+    }
+
+    /**
+     * @return the value of addr at position, or initialValue if it has not
+     *         been written until then
+     */
+    public int getValue(int addr, int position, int initialValue) {
+        int write = floor(getLast(addr), position);
+        return write == NONE ? initialValue : trace.getWriteValue(write);
+    }
+
+    /**
+     * @return the position of the last write to addr at or before position,
+     *         or {@link #NONE}
+     */
+    public int findPrevious(int addr, int position) {
+        int write = floor(getLast(addr), position);
+        return write == NONE ? NONE : trace.getWritePosition(write);
+    }
+
+    /**
+     * @return the position of the first write to addr after position, or
+     *         {@link #NONE}
+     */
+    public int findNext(int addr, int position) {
+        int write = getLast(addr);
+        if (write == NONE || trace.getWritePosition(write) <= position) {
+            return NONE;
+        }
+        // all writes passed are after position
+        int previous = trace.getWritePrevious(write);
+        while (previous != NONE && trace.getWritePosition(previous) > position) {
+            int jump = trace.getWriteJump(write);
+            if (trace.getWritePosition(jump) > position) {
+                write = jump;
+            } else {
+                write = previous;
+            }
+            previous = trace.getWritePrevious(write);
+        }
+        return trace.getWritePosition(write);
+    }
+
+    /**
+     * Find the closest write matching the watchpoint after position, or
+     * before position if not forward.
+     *
+     * @param initialValue the value of the location before the first write
+     * @return the position of the write, or {@link #NONE}
+     */
+    public int find(Watchpoint watchpoint, int position, boolean forward, int initialValue) {
+        int last = getLast(watchpoint.addr());
+        if (last == NONE) {
+            return NONE;
+        }
+        if (forward) {
+            // the list runs backwards, so fetch the writes after position block by block
+            int floor = floor(last, position);
+            int end = trace.getWriteOrdinal(last) + 1;
+            int[] block = new int[BLOCK_SIZE];
+            for (int from = floor == NONE ? 0 : trace.getWriteOrdinal(floor) + 1; from < end; from += BLOCK_SIZE) {
+                int to = Math.min(end, from + BLOCK_SIZE);
+                int write = ancestor(last, to - 1);
+                for (int i = to - 1; i >= from; i--) {
+                    block[i - from] = write;
+                    write = trace.getWritePrevious(write);
+                }
+                for (int i = from; i < to; i++) {
+                    if (matches(watchpoint, block[i - from], initialValue)) {
+                        return trace.getWritePosition(block[i - from]);
+                    }
+                }
+            }
+        } else {
+            for (int write = floor(last, position - 1); write != NONE; write = trace.getWritePrevious(write)) {
+                if (matches(watchpoint, write, initialValue)) {
+                    return trace.getWritePosition(write);
+                }
+            }
+        }
+        return NONE;
+    }
+
+    private boolean matches(Watchpoint watchpoint, int write, int initialValue) {
+        int previous = trace.getWritePrevious(write);
+        int oldValue = previous == NONE ? initialValue : trace.getWriteValue(previous);
+        return watchpoint.matches(oldValue, trace.getWriteValue(write));
+    }
+
+    /**
+     * @return the number of writes to addr
+     */
+    public int countWrites(int addr) {
+        int write = getLast(addr);
+        return write == NONE ? 0 : trace.getWriteOrdinal(write) + 1;
+    }
+
+    public long getWriteCount() {
+        return trace.countWrites();
+    }
+
+    /**
+     * Forget all writes after the given position.
+     */
+    public void truncate(int position) {
+        // the records are sorted by position, find the first one to remove
+        int low = 0;
+        int high = trace.countWrites() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (trace.getWritePosition(mid) <= position) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        for (int[] page : pages) {
+            if (page != null) {
+                for (int i = 0; i < page.length; i++) {
+                    while (page[i] >= low) {
+                        page[i] = trace.getWritePrevious(page[i]);
+                    }
+                }
+            }
+        }
+        trace.truncateWrites(low);
+    }
+
+    /**
+     * Write the last write of every written address, in the format read by
+     * {@link #read(ByteBuffer, TraceStore)}. The records themselves are
+     * written with the trace store.
+     */
+    public void write(DataOutput out) throws IOException {
+        int count = 0;
+        for (int[] page : pages) {
+            if (page != null) {
+                for (int write : page) {
+                    if (write != NONE) {
+                        count ++;
+                    }
+                }
+            }
+        }
+        out.writeInt(count);
+        for (int i = 0; i < pages.length; i++) {
+            if (pages[i] != null) {
+                for (int j = 0; j < State.PAGE_SIZE; j++) {
+                    if (pages[i][j] != NONE) {
+                        out.writeInt((i << State.PAGE_BITS) + j);
+                        out.writeInt(pages[i][j]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read what {@link #write(DataOutput)} has written, from a big-endian
+     * buffer. The records must be in the given trace store.
+     */
+    public static WriteIndex read(ByteBuffer in, TraceStore trace) throws IOException {
+        WriteIndex result = new WriteIndex(trace);
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            int addr = in.getInt();
+            int write = in.getInt();
+            if (addr < 0 || addr >= Constants.ADDRESS_RANGE || write < 0 || write >= trace.countWrites()) {
+                throw new IOException("Corrupt write index");
+            }
+            int[] page = result.pages[addr >> State.PAGE_BITS];
+            if (page == null) {
+                page = new int[State.PAGE_SIZE];
+                Arrays.fill(page, NONE);
+                result.pages[addr >> State.PAGE_BITS] = page;
+            }
+            page[addr & PAGE_MASK] = write;
+        }
+        return result;
+    }
+
+    /**
+     * Approximate number of bytes occupied by the last writes. The records
+     * are part of the trace store.
+     */
+    public long getByteSize() {
+        long result = 0;
+        for (int[] page : pages) {
+            if (page != null) {
+                result += 16 + 4L * page.length;
+            }
+        }
+        return result;
+    }
+}
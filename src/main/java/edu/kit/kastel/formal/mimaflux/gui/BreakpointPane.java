@@ -74,6 +74,7 @@ public class BreakpointPane extends BracketMatchingTextArea implements Observer
     private BreakpointManager breakpointManager;
     private Object breakPointResource;
     private List<Object> lineHighlights = new ArrayList<Object>();
+    private LineNrBorder lineNrBorder;
     
     public BreakpointPane(BreakpointManager breakpointManager,
             boolean showLineNumbers) {
@@ -90,7 +91,8 @@ public class BreakpointPane extends BracketMatchingTextArea implements Observer
             BulletBorder breakpointBorder = new BulletBorder();
             Border secondBorder;
             if(showLineNumbers) {
-                secondBorder = new LineNrBorder(Color.lightGray);
+                lineNrBorder = new LineNrBorder(Color.lightGray);
+                secondBorder = lineNrBorder;
             } else {
                 secondBorder = new EmptyBorder(0, BULLET_ICON.getIconWidth(), 0, 0);
             }
@@ -165,6 +167,21 @@ public class BreakpointPane extends BracketMatchingTextArea implements Observer
         popup.show(e.getComponent(), e.getX(), e.getY());
     }
     
+    /**
+     * Shows how often the lines have been executed as a heat map behind the
+     * line numbers (if they are shown).
+     *
+     * @param executions
+     *            the counts indexed by line (1-based), or null to remove the
+     *            heat map
+     */
+    public void setLineHeat(int[] executions) {
+        if (lineNrBorder != null) {
+            lineNrBorder.setHeat(executions);
+            repaint();
+        }
+    }
+
     public void removeHighlights() {
         Highlighter highlighter = getHighlighter();
         for (Object hl : lineHighlights) {
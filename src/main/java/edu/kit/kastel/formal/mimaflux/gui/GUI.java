@@ -15,11 +15,19 @@
 package edu.kit.kastel.formal.mimaflux.gui;
 
 import edu.kit.kastel.formal.mimaflux.Command;
+import edu.kit.kastel.formal.mimaflux.Constants;
 import edu.kit.kastel.formal.mimaflux.Interpreter;
+import edu.kit.kastel.formal.mimaflux.LoopDetector.Loop;
 import edu.kit.kastel.formal.mimaflux.MimaFlux;
+import edu.kit.kastel.formal.mimaflux.Profile;
+import edu.kit.kastel.formal.mimaflux.ProgressListener;
 import edu.kit.kastel.formal.mimaflux.State;
+import edu.kit.kastel.formal.mimaflux.StateChange;
+import edu.kit.kastel.formal.mimaflux.StateChangeListener;
 import edu.kit.kastel.formal.mimaflux.Timeline;
-import edu.kit.kastel.formal.mimaflux.UpdateListener;
+import edu.kit.kastel.formal.mimaflux.TraceFile;
+import edu.kit.kastel.formal.mimaflux.Watchpoint;
+import edu.kit.kastel.formal.mimaflux.Watchpoint.Kind;
 import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.kordamp.ikonli.Ikon;
 import org.kordamp.ikonli.codicons.Codicons;
@@ -28,36 +36,44 @@ import org.kordamp.ikonli.swing.FontIcon;
 import javax.swing.*;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
-import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
 
-public class GUI extends JFrame implements UpdateListener {
+public class GUI extends JFrame implements StateChangeListener {
     private static final String STEP_LABEL_PATTERN = "Step %d of %d    ";
-    private static final Object[] TABLE_HEADERS = { "Address", "Value", "Instruction" };
-    public static final int ROW_COUNT = 1 << 12;
     private static final Font TABLE_FONT = new Font(Font.MONOSPACED, Font.PLAIN, 14);
+    // number of writes before and after the current step shown in the memory tooltip
+    private static final int HISTORY_LENGTH = 5;
+    private static final String[] WATCH_CONDITIONS = { "changes", "becomes equal to", "crosses the sign bit" };
 
     private static final FileFilter MIMA_ASM_FILE_FILTER =
             new FileNameExtensionFilter("Mima ASM Files (.mima)", "mima");
+    private static final FileFilter TRACE_FILE_FILTER =
+            new FileNameExtensionFilter("Mima Flux Traces (." + TraceFile.EXTENSION + ")", TraceFile.EXTENSION);
 
 
     private BreakpointManager breakpointManager = new BreakpointManager();
 
     private BreakpointPane code;
     private Timeline timeline;
-    private DefaultTableModel tableModel;
-    private JSpinner pageSpinner;
+    // the timeline before the code has been edited, to be reused by loadString
+    private Timeline outdatedTimeline;
+    private MemoryTableModel tableModel;
+    private JTable memTable;
     private JComboBox<RepreState> repreMode;
     private JLabel stepLabel;
     private JTextField accuField;
@@ -68,6 +84,21 @@ public class GUI extends JFrame implements UpdateListener {
     private JPanel optionalPanel;
     private boolean modifiedSinceLoad;
 
+    // the program being executed in the background, or null
+    private Execution execution;
+    private JLabel progressLabel;
+    private JButton cancelButton;
+
+    // labels are resolved when a watchpoint is used, they may move when the code is edited
+    private record WatchEntry(String location, Kind kind, int value) {
+        @Override
+        public String toString() {
+            String result = location + " " + WATCH_CONDITIONS[kind.ordinal()];
+            return kind == Kind.EQUALS ? result + " " + value : result;
+        }
+    }
+    private DefaultListModel<WatchEntry> watchpoints = new DefaultListModel<>();
+
     public GUI(Timeline timeline) {
         super("Mima Flux Capacitor -- Time Travel Debugger");
         this.lastFilename = MimaFlux.mmargs.fileName;
@@ -78,21 +109,36 @@ public class GUI extends JFrame implements UpdateListener {
 
     private void setTimeline(Timeline timeline) {
 
+        if (this.timeline != null && this.timeline != timeline) {
+            if (timeline == null) {
+                closeOutdatedTimeline();
+                outdatedTimeline = this.timeline;
+            } else {
+                this.timeline.close();
+                // setting the code below must not touch it any more
+                this.timeline = null;
+            }
+        }
+
         if (timeline == null) {
             this.timeline = null;
             setModified(true);
             return;
         }
-        timeline.addListener(this);
+        closeOutdatedTimeline();
+        timeline.addStateListener(this);
         code.setText(timeline.getFileContent());
         this.timeline = timeline;
+        tableModel.setTimeline(timeline);
 
-        memoryChanged(Timeline.STEP, 0);
-        memoryChanged(State.ACCU, 0);
-        memoryChanged(State.IAR, timeline.get(State.IAR));
+        showStep(timeline.getPosition());
+        showIAR(timeline.get(State.IAR));
 
         setModified(false);
         refillTable();
+        if (execution == null) {
+            showProfile(timeline);
+        }
     }
 
     private void setModified(boolean b) {
@@ -100,27 +146,61 @@ public class GUI extends JFrame implements UpdateListener {
         ((CardLayout)optionalPanel.getLayout()).show(optionalPanel, b ? "modified" : "normal");
         if(b) {
             code.removeHighlights();
+            code.setLineHeat(null);
         }
     }
 
-    private void refillTable() {
-        int page = ((Number)pageSpinner.getValue()).intValue() * ROW_COUNT;
+    // the profile is only shown once the recording has finished
+    private void showProfile(Timeline timeline) {
+        Profile profile = timeline.getProfile();
+        code.setLineHeat(profile == null ? null : profile.getExecutionsByLine(timeline.getProgram()));
+    }
 
+    private void refillTable() {
         iarField.setText(formatValue(timeline.get(State.IAR)));
         accuField.setText(formatValue(timeline.get(State.ACCU)));
+        // the visible rows are formatted again when they are painted
+        tableModel.fireTableRowsUpdated(0, tableModel.getRowCount() - 1);
+    }
 
-        for (int i = 0; i < ROW_COUNT; i++) {
-            int adr = page | i;
-            String name = timeline.getNameFor(adr);
-            if (name == null) {
-                name = "";
-            } else {
-                name = " (" + name + ")";
-            }
-            tableModel.setValueAt(String.format("0x%05x%s", adr, name), i, 0);
-            tableModel.setValueAt(formatValue(timeline.get(adr)), i, 1);
-            tableModel.setValueAt(State.toInstruction(timeline.get(adr)), i, 2);
+    // scroll the memory table such that the given address is the first visible row
+    private void showAddress(String location) {
+        Integer addr = resolveLocation(location.trim());
+        if (addr == null || addr < 0) {
+            JOptionPane.showMessageDialog(this,
+                    "Unknown address or label: " + location,
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        Rectangle rect = memTable.getCellRect(addr, 0, true);
+        rect.height = memTable.getVisibleRect().height;
+        memTable.scrollRectToVisible(rect);
+    }
+
+    // the values of a memory location around the current position, as tooltip text
+    private String describeHistory(int adr) {
+        int count = timeline.countWrites(adr);
+        if (count == 0) {
+            return "Never written";
+        }
+        int position = timeline.getPosition();
+        List<String> lines = new ArrayList<>();
+        int write = timeline.findPreviousWrite(adr, position);
+        for (int i = 0; i < HISTORY_LENGTH && write >= 0; i++) {
+            lines.add(0, String.format("Step %d: %s", write, formatValue(timeline.getValueAt(adr, write))));
+            write = timeline.findPreviousWrite(adr, write - 1);
+        }
+        lines.add(0, write >= 0 ? "..." : String.format("Initially: %s", formatValue(timeline.getValueAt(adr, 0))));
+        lines.add("<i>now at step " + position + "</i>");
+        write = timeline.findNextWrite(adr, position);
+        for (int i = 0; i < HISTORY_LENGTH && write >= 0; i++) {
+            lines.add(String.format("Step %d: %s", write, formatValue(timeline.getValueAt(adr, write))));
+            write = timeline.findNextWrite(adr, write);
         }
+        if (write >= 0) {
+            lines.add("...");
+        }
+        return "<html>Written " + count + " times<br>" + String.join("<br>", lines) + "</html>";
     }
 
     private String formatValue(int val) {
@@ -143,6 +223,13 @@ public class GUI extends JFrame implements UpdateListener {
         }
     }
 
+    private void closeOutdatedTimeline() {
+        if (outdatedTimeline != null) {
+            outdatedTimeline.close();
+            outdatedTimeline = null;
+        }
+    }
+
     private void initGui() {
         Container cp = getContentPane();
         cp.setLayout(new BorderLayout());
@@ -170,6 +257,9 @@ public class GUI extends JFrame implements UpdateListener {
         JLabel disabled = new JLabel("Program has been modified ...");
         disabled.setBorder(BorderFactory.createEmptyBorder(5,30,5,5));
         optionalPanel.add(disabled, "modified");
+        JLabel running = new JLabel("Executing program ...");
+        running.setBorder(BorderFactory.createEmptyBorder(5,30,5,5));
+        optionalPanel.add(running, "running");
 
         JSplitPane split = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, leftPanel, optionalPanel);
         split.setResizeWeight(1);
@@ -194,9 +284,17 @@ public class GUI extends JFrame implements UpdateListener {
 
     private JPanel makeMemPanel() {
         JPanel result = new JPanel(new GridBagLayout());
-        this.tableModel = new DefaultTableModel(ROW_COUNT, 3);
-        tableModel.setColumnIdentifiers(TABLE_HEADERS);
-        JTable memTable = new JTable(tableModel);
+        this.tableModel = new MemoryTableModel(this::formatValue);
+        this.memTable = new JTable(tableModel) {
+            @Override
+            public String getToolTipText(MouseEvent event) {
+                int row = rowAtPoint(event.getPoint());
+                if (row < 0 || timeline == null) {
+                    return null;
+                }
+                return describeHistory(row);
+            }
+        };
         memTable.setFont(TABLE_FONT);
         memTable.setEnabled(false);
 
@@ -246,23 +344,62 @@ public class GUI extends JFrame implements UpdateListener {
             JPanel p = new JPanel(new FlowLayout(FlowLayout.LEFT));
             this.stepLabel = new JLabel(" ");
             p.add(stepLabel);
+            this.progressLabel = new JLabel();
+            p.add(progressLabel);
+            this.cancelButton = new JButton("Cancel");
+            cancelButton.setToolTipText("Stop the execution of the program");
+            cancelButton.addActionListener(e -> {
+                if (execution != null) {
+                    execution.cancelRequested = true;
+                }
+            });
+            cancelButton.setVisible(false);
+            p.add(cancelButton);
+            result.add(p, gbc);
+        }
+        gbc.gridy ++;
+        {
+            JPanel p = new JPanel(new BorderLayout(5, 5));
+            p.add(new JLabel("Watchpoints:"), BorderLayout.NORTH);
+            JList<WatchEntry> list = new JList<>(watchpoints);
+            list.setVisibleRowCount(3);
+            p.add(new JScrollPane(list), BorderLayout.CENTER);
+            JPanel buttons = new JPanel(new GridLayout(2, 2));
+            JButton add = new JButton("Add ...");
+            add.addActionListener(this::addWatchpoint);
+            buttons.add(add);
+            JButton remove = new JButton("Remove");
+            remove.addActionListener(e -> list.getSelectedValuesList().forEach(watchpoints::removeElement));
+            buttons.add(remove);
+            JButton previous = new JButton("Previous");
+            previous.setToolTipText("Go back to the last step meeting a watchpoint");
+            previous.addActionListener(e -> continueToWatchpoint(false));
+            buttons.add(previous);
+            JButton next = new JButton("Next");
+            next.setToolTipText("Go to the next step meeting a watchpoint");
+            next.addActionListener(e -> continueToWatchpoint(true));
+            buttons.add(next);
+            p.add(buttons, BorderLayout.EAST);
+            p.setBorder(BorderFactory.createEmptyBorder(5,5,5,5));
             result.add(p, gbc);
         }
         gbc.gridy ++;
         {
             JPanel p = new JPanel(new FlowLayout(FlowLayout.RIGHT));
             this.repreMode = new JComboBox(RepreState.values());
-            repreMode.addActionListener(e -> refillTable());
+            repreMode.addActionListener(e -> {
+                tableModel.representationChanged();
+                if (timeline != null) {
+                    refillTable();
+                }
+            });
             p.add(repreMode);
 
-            p.add(new JLabel("      Memory page: "));
-            this.pageSpinner = new JSpinner();
-            pageSpinner.setModel(new SpinnerNumberModel(0, 0, 0xff, 1));
-            pageSpinner.addChangeListener(e -> refillTable());
-            JSpinner.DefaultEditor editor = (JSpinner.DefaultEditor) pageSpinner.getEditor();
-            JFormattedTextField tf = editor.getTextField();
-            tf.setFormatterFactory(new HexFormatter.Factory());
-            p.add(pageSpinner, gbc);
+            p.add(new JLabel("      Go to address: "));
+            JTextField gotoField = new JTextField(8);
+            gotoField.setToolTipText("Address or label to scroll the memory table to");
+            gotoField.addActionListener(e -> showAddress(gotoField.getText()));
+            p.add(gotoField);
             result.add(p, gbc);
         }
 
@@ -292,10 +429,10 @@ public class GUI extends JFrame implements UpdateListener {
     }
 
     private void gotoStart(ActionEvent actionEvent) {
-        if (timeline == null) {
-            loadString(code.getText());
-        } else {
+        if (timeline != null) {
             timeline.setPosition(0);
+        } else if (execution == null) {
+            loadString(code.getText());
         }
     }
 
@@ -306,6 +443,9 @@ public class GUI extends JFrame implements UpdateListener {
         popup.add("Save").addActionListener(this::saveLastFile);
         popup.add("Save As ...").addActionListener(this::saveAs);
         popup.addSeparator();
+        popup.add("Open trace ...").addActionListener(this::chooseTrace);
+        popup.add("Save trace ...").addActionListener(this::saveTrace);
+        popup.addSeparator();
         popup.add("Exit").addActionListener(ev -> {
             if(sureChangesLost()) System.exit(0);
         });
@@ -371,6 +511,69 @@ public class GUI extends JFrame implements UpdateListener {
         }
     }
 
+    private void chooseTrace(ActionEvent e) {
+        if (execution != null) {
+            JOptionPane.showMessageDialog(this,
+                    "The program is still being executed. Cancel the execution first.",
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if(!sureChangesLost()) {
+            return;
+        }
+        JFileChooser jfc = new JFileChooser(".");
+        jfc.addChoosableFileFilter(TRACE_FILE_FILTER);
+        jfc.setFileFilter(TRACE_FILE_FILTER);
+        int result = jfc.showOpenDialog(this);
+        if (result == JFileChooser.APPROVE_OPTION) {
+            loadTrace(jfc.getSelectedFile().toPath());
+        }
+    }
+
+    private void loadTrace(Path path) {
+        Timeline loaded;
+        try {
+            loaded = TraceFile.load(path);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this,
+                    ex.getMessage(),
+                    "Error while loading trace.", JOptionPane.ERROR_MESSAGE);
+            MimaFlux.logStacktrace(ex);
+            return;
+        }
+        setTimeline(loaded);
+        // the program has not been loaded from a file
+        this.lastFilename = null;
+        modifiedSinceLoad = false;
+    }
+
+    private void saveTrace(ActionEvent e) {
+        if (timeline == null || execution != null) {
+            JOptionPane.showMessageDialog(this,
+                    "Only a completely recorded timeline can be saved. Run the program first.",
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        JFileChooser jfc = new JFileChooser(".");
+        jfc.addChoosableFileFilter(TRACE_FILE_FILTER);
+        jfc.setFileFilter(TRACE_FILE_FILTER);
+        int result = jfc.showSaveDialog(this);
+        if (result == JFileChooser.APPROVE_OPTION) {
+            String fileName = jfc.getSelectedFile().toString();
+            if (!fileName.endsWith("." + TraceFile.EXTENSION)) {
+                fileName += "." + TraceFile.EXTENSION;
+            }
+            try {
+                timeline.save(Paths.get(fileName));
+            } catch (IOException ex) {
+                JOptionPane.showMessageDialog(this,
+                        ex.getMessage(),
+                        "Error while saving trace.", JOptionPane.ERROR_MESSAGE);
+                MimaFlux.logStacktrace(ex);
+            }
+        }
+    }
+
     private boolean sureChangesLost() {
         if (!modifiedSinceLoad) {
             return true;
@@ -397,47 +600,239 @@ public class GUI extends JFrame implements UpdateListener {
     }
 
     private void loadString(String content) {
-        try {
+        if (execution != null) {
+            JOptionPane.showMessageDialog(this,
+                    "The program is still being executed. Cancel the execution first.",
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        // the previous timeline is handed over to the execution, the gui must not access it any more
+        Timeline previous = outdatedTimeline != null ? outdatedTimeline : this.timeline;
+        if (previous != null) {
+            previous.removeStateListener(this);
+        }
+        this.timeline = null;
+        this.outdatedTimeline = null;
+        tableModel.setTimeline(null);
+
+        componentsToDisable.forEach(x -> x.setEnabled(false));
+        code.setEditable(false);
+        code.removeHighlights();
+        code.setLineHeat(null);
+        ((CardLayout)optionalPanel.getLayout()).show(optionalPanel, "running");
+
+        execution = new Execution(content, previous);
+        execution.execute();
+    }
+
+    /**
+     * Parses and executes a program on a worker thread. The timeline is
+     * shown as soon as the execution starts and grows while it runs.
+     */
+    private class Execution extends SwingWorker<Timeline, Integer> implements ProgressListener {
+        private final String content;
+        private final Timeline previous;
+        private final long startTime = System.nanoTime();
+        private volatile boolean cancelRequested;
+        // set when the recording has actually been stopped early
+        private volatile boolean cancelled;
+        private Loop loop;
+
+        private Execution(String content, Timeline previous) {
+            this.content = content;
+            this.previous = previous;
+        }
+
+        @Override
+        protected Timeline doInBackground() {
             Interpreter interpreter = new Interpreter();
             interpreter.parseString(content);
-            timeline = interpreter.makeTimeline();
-            setTimeline(timeline);
+            Timeline result = interpreter.makeTimeline(previous, this);
+            // finding the loop entry executes the program again, it cannot be cancelled
+            SwingUtilities.invokeLater(() -> cancelButton.setVisible(false));
+            loop = interpreter.getLoop();
+            return result;
+        }
 
-            if (timeline.countStates() == MimaFlux.mmargs.maxSteps) {
-                JOptionPane.showMessageDialog(this,
+        @Override
+        public void timelineCreated(Timeline timeline) {
+            SwingUtilities.invokeLater(() -> {
+                // setting the code text is not a modification
+                boolean modified = modifiedSinceLoad;
+                setTimeline(timeline);
+                modifiedSinceLoad = modified;
+                progressLabel.setText("(executing)");
+                cancelButton.setVisible(true);
+            });
+        }
+
+        @Override
+        public boolean stepsRecorded(int steps) {
+            publish(steps);
+            cancelled = cancelRequested;
+            return !cancelled;
+        }
+
+        @Override
+        protected void process(List<Integer> chunks) {
+            int steps = chunks.get(chunks.size() - 1);
+            long nanos = Math.max(1, System.nanoTime() - startTime);
+            progressLabel.setText(String.format("(executing, %,d steps per second)",
+                    steps * 1_000_000_000L / nanos));
+            if (timeline != null) {
+                showStep(timeline.getPosition());
+            }
+        }
+
+        @Override
+        protected void done() {
+            execution = null;
+            code.setEditable(true);
+            progressLabel.setText("");
+            cancelButton.setVisible(false);
+            Timeline timeline;
+            try {
+                timeline = get();
+            } catch (ExecutionException | InterruptedException ex) {
+                Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                if (cause instanceof ParseCancellationException && cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                if (GUI.this.timeline == null) {
+                    // the previous timeline is only consumed if the program could be parsed
+                    outdatedTimeline = previous;
+                    tableModel.setTimeline(previous);
+                    setModified(true);
+                } else if (previous != null) {
+                    previous.close();
+                }
+                JOptionPane.showMessageDialog(GUI.this,
+                        cause.getMessage(),
+                        "Error while executing mima file.", JOptionPane.ERROR_MESSAGE);
+                MimaFlux.logStacktrace(ex);
+                return;
+            }
+
+            if (previous != null) {
+                // does not affect the new timeline if its steps have been reused
+                previous.close();
+            }
+            showStep(timeline.getPosition());
+            showProfile(timeline);
+
+            if (cancelled) {
+                JOptionPane.showMessageDialog(GUI.this,
+                        "The execution has been cancelled after " + timeline.countStates() + " steps.",
+                        "Cancelled", JOptionPane.INFORMATION_MESSAGE);
+            } else if (loop != null) {
+                JOptionPane.showMessageDialog(GUI.this,
+                        new Object[] {
+                                "This program does not terminate.",
+                                "From step " + loop.entry() + " on, the machine state repeats every " +
+                                        loop.period() + " steps." },
+                        "Warning", JOptionPane.WARNING_MESSAGE);
+            } else if (timeline.countStates() == MimaFlux.mmargs.maxSteps) {
+                JOptionPane.showMessageDialog(GUI.this,
                         new Object[] {
                                 "This timeline reaches the maximum number of steps.",
                                 "Perhaps an infinite loop? Consider using '-maxStep' to increase this bound." },
                 "Warning", JOptionPane.WARNING_MESSAGE);
             }
+        }
+    }
 
-        } catch (ParseCancellationException parseCancel) {
-            JOptionPane.showMessageDialog(this,
-                    parseCancel.getCause().getMessage(),
-                    "Error while executing mima file.", JOptionPane.ERROR_MESSAGE);
-            MimaFlux.logStacktrace(parseCancel);
-        } catch(Exception ex) {
+    private void addWatchpoint(ActionEvent e) {
+        JTextField location = new JTextField();
+        JComboBox<String> condition = new JComboBox<>(WATCH_CONDITIONS);
+        JTextField value = new JTextField("0");
+        int answer = JOptionPane.showConfirmDialog(this,
+                new Object[] {
+                        "Address or label (_accu, _iar for the registers):", location,
+                        "Condition:", condition,
+                        "Value:", value },
+                "Add watchpoint", JOptionPane.OK_CANCEL_OPTION);
+        if (answer != JOptionPane.OK_OPTION) {
+            return;
+        }
+        String name = location.getText().trim();
+        if (resolveLocation(name) == null) {
             JOptionPane.showMessageDialog(this,
-                    ex.getMessage(),
-                    "Error while executing mima file.", JOptionPane.ERROR_MESSAGE);
-            MimaFlux.logStacktrace(ex);
+                    "Unknown address or label: " + name,
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
         }
+        Kind kind = Kind.values()[condition.getSelectedIndex()];
+        int val = 0;
+        if (kind == Kind.EQUALS) {
+            try {
+                val = Integer.decode(value.getText().trim()) & Constants.VALUE_MASK;
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this,
+                        "Not a number: " + value.getText(),
+                        "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+        }
+        watchpoints.addElement(new WatchEntry(name, kind, val));
+    }
 
+    // the address of a label, register or number, null if unknown
+    private Integer resolveLocation(String name) {
+        switch (name) {
+            case "_accu": return State.ACCU;
+            case "_iar": return State.IAR;
+        }
+        Integer result = timeline == null ? null : timeline.getLabelMap().get(name);
+        if (result == null) {
+            try {
+                result = Integer.decode(name) & Constants.ADDRESS_MASK;
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    private void continueToWatchpoint(boolean forward) {
+        if (timeline == null) {
+            return;
+        }
+        int target = -1;
+        for (int i = 0; i < watchpoints.size(); i++) {
+            WatchEntry entry = watchpoints.get(i);
+            Integer addr = resolveLocation(entry.location());
+            if (addr == null) {
+                continue;
+            }
+            int found = timeline.findWrite(new Watchpoint(addr, entry.kind(), entry.value()), forward);
+            if (found >= 0 && (target < 0 || (forward ? found < target : found > target))) {
+                target = found;
+            }
+        }
+        if (target >= 0) {
+            timeline.setPosition(target);
+        } else {
+            JOptionPane.showMessageDialog(this,
+                    forward ? "No watchpoint is met after this step." : "No watchpoint is met before this step.",
+                    "Watchpoints", JOptionPane.INFORMATION_MESSAGE);
+        }
     }
 
     private void continueToBreakpoint(int offset) {
-        int pos;
-        do {
-            timeline.addToPosition(offset);
-            Command command = timeline.findIARCommand();
-            if (command != null) {
-                int line = command.getMnemonicLine();
-                if(breakpointManager.hasBreakpoint(this, line - 1)) {
-                    break;
-                }
+        // the addresses whose instruction is on a line with a breakpoint
+        BitSet addresses = new BitSet();
+        for (int line : breakpointManager.getBreakpoints(this)) {
+            int address = timeline.getProgram().getAddress(line + 1);
+            if (address >= 0) {
+                addresses.set(address);
             }
-            pos = timeline.getPosition();
-        } while(pos > 0 && pos < timeline.countStates());
+        }
+        int position = timeline.findIAR(addresses, offset > 0);
+        if (position < 0) {
+            position = offset > 0 ? timeline.countStates() : 0;
+        }
+        timeline.setPosition(position);
     }
 
     private JButton button(String text, KeyStroke keyStroke, Ikon ikon, ActionListener listener, boolean needsProgram) {
@@ -462,32 +857,45 @@ public class GUI extends JFrame implements UpdateListener {
     }
 
     @Override
-    public void memoryChanged(int addr, int val) {
-        switch(addr) {
-            case Timeline.STEP:
-                stepLabel.setText(String.format(STEP_LABEL_PATTERN, val, timeline.countStates()));
-                return;
-            case State.ACCU:
-                accuField.setText(formatValue(val));
-                return;
-            case State.IAR:
-                iarField.setText(formatValue(val));
-                nextInstruction.setText(State.toInstruction(timeline.get(val)));
-                code.removeHighlights();
-                Command command = timeline.findIARCommand();
-                if (command != null) {
-                    int line = command.getMnemonicLine();
-                    code.addHighlight(line - 1);
-                }
-                return;
+    public void stateChanged(StateChange change) {
+        showStep(change.position());
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < change.size(); i++) {
+            int addr = change.addresses()[i];
+            int val = change.values()[i];
+            switch (addr) {
+                case State.ACCU:
+                    accuField.setText(formatValue(val));
+                    break;
+                case State.IAR:
+                    showIAR(val);
+                    break;
+                default:
+                    if (first < 0) {
+                        first = addr;
+                    }
+                    last = addr;
+            }
+        }
+        if (first >= 0) {
+            // only the visible rows are repainted
+            tableModel.fireTableRowsUpdated(first, last);
         }
+    }
 
-        int page = addr >> 12;
-        if (page != (Integer) pageSpinner.getValue()) {
-            return;
+    private void showStep(int position) {
+        stepLabel.setText(String.format(STEP_LABEL_PATTERN, position, timeline.countStates()));
+    }
+
+    private void showIAR(int val) {
+        iarField.setText(formatValue(val));
+        nextInstruction.setText(State.toInstruction(timeline.get(val)));
+        code.removeHighlights();
+        Command command = timeline.findIARCommand();
+        if (command != null) {
+            int line = command.getMnemonicLine();
+            code.addHighlight(line - 1);
         }
-        addr &= ROW_COUNT-1;
-        tableModel.setValueAt(formatValue(val), addr, 1);
-        tableModel.setValueAt(State.toInstruction(val), addr, 2);
     }
 }
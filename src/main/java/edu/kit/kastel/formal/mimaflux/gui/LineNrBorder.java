@@ -60,6 +60,11 @@ public class LineNrBorder extends EmptyBorder {
      */
     private static final int MIN_WIDTH = 20;
 
+    /**
+     * The color of the most often executed lines
+     */
+    private static final Color HEAT_COLOR = new Color(0xff6000);
+
     /**
      * The Constant serialVersionUID.
      */
@@ -75,6 +80,12 @@ public class LineNrBorder extends EmptyBorder {
      */
     private int numberOfDigits = 0;
 
+    /**
+     * Execution counts per line (1-based) to be shown as a heat map behind
+     * the line numbers, or null.
+     */
+    private int[] heat;
+
     /**
      * Instantiates a new line-no-border.
      * 
@@ -147,6 +158,11 @@ public class LineNrBorder extends EmptyBorder {
         int descent = fm.getDescent();
 
         int maxLine = textArea.getLineCount();
+
+        if (heat != null) {
+            paintHeat(g, fm.stringWidth(Integer.toString(maxLine)), step, maxLine);
+            g.setColor(color);
+        }
         
         for (int i = step, line = 1; line <= maxLine; i += step, line++) {
             String lineNoStr = Integer.toString(line);
@@ -157,6 +173,39 @@ public class LineNrBorder extends EmptyBorder {
 
     }
 
+    /*
+     * fill the background of the line numbers, the more often a line has
+     * been executed the more intense (on a logarithmic scale).
+     */
+    private void paintHeat(Graphics g, int numberWidth, int step, int maxLine) {
+        int max = 0;
+        for (int count : heat) {
+            max = Math.max(max, count);
+        }
+        if (max == 0) {
+            return;
+        }
+        int x = left - 2*SEPARATION - numberWidth - SEPARATION/2;
+        int width = left - SEPARATION - x;
+        for (int line = 1; line < heat.length && line <= maxLine; line++) {
+            if (heat[line] > 0) {
+                int alpha = (int) (40 + 200 * Math.log1p(heat[line]) / Math.log1p(max));
+                g.setColor(new Color(HEAT_COLOR.getRed(), HEAT_COLOR.getGreen(), HEAT_COLOR.getBlue(), alpha));
+                g.fillRect(x, (line - 1) * step, width, step);
+            }
+        }
+    }
+
+    /**
+     * Sets the execution counts to be shown behind the line numbers.
+     *
+     * @param heat
+     *            the counts indexed by line (1-based), or null for none
+     */
+    public void setHeat(int[] heat) {
+        this.heat = heat;
+    }
+
     /**
      * Gets the color of the border
      * 
@@ -0,0 +1,130 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.gui;
+
+import edu.kit.kastel.formal.mimaflux.Constants;
+import edu.kit.kastel.formal.mimaflux.State;
+import edu.kit.kastel.formal.mimaflux.Timeline;
+
+import javax.swing.table.AbstractTableModel;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * The memory of the current state of a timeline, one row per address.
+ *
+ * Cells are only computed when the table asks for them, i.e., for the
+ * visible rows. The formatted values and instructions are cached by value,
+ * memory usually contains few distinct values.
+ */
+class MemoryTableModel extends AbstractTableModel {
+
+    private static final String[] COLUMN_NAMES = { "Address", "Value", "Instruction" };
+
+    private final Cache values;
+    private final Cache instructions = new Cache(State::toInstruction);
+    private Timeline timeline;
+
+    /**
+     * A direct mapped cache of strings for int keys.
+     */
+    private static class Cache {
+        private static final int BITS = 12;
+        private static final int MASK = (1 << BITS) - 1;
+
+        private final int[] keys = new int[1 << BITS];
+        private final String[] strings = new String[1 << BITS];
+        private final IntFunction<String> function;
+
+        Cache(IntFunction<String> function) {
+            this.function = function;
+        }
+
+        String get(int key) {
+            int index = (key ^ (key >>> BITS)) & MASK;
+            String result = strings[index];
+            if (result == null || keys[index] != key) {
+                result = function.apply(key);
+                keys[index] = key;
+                strings[index] = result;
+            }
+            return result;
+        }
+
+        void clear() {
+            Arrays.fill(strings, null);
+        }
+    }
+
+    /**
+     * @param formatter the representation of values in the value column
+     */
+    MemoryTableModel(IntFunction<String> formatter) {
+        this.values = new Cache(formatter);
+    }
+
+    void setTimeline(Timeline timeline) {
+        this.timeline = timeline;
+        fireTableRowsUpdated(0, getRowCount() - 1);
+    }
+
+    /**
+     * The value in the current representation, cached.
+     */
+    String format(int value) {
+        return values.get(value);
+    }
+
+    /**
+     * Must be called when the representation of values changes.
+     */
+    void representationChanged() {
+        values.clear();
+        fireTableRowsUpdated(0, getRowCount() - 1);
+    }
+
+    @Override
+    public int getRowCount() {
+        return Constants.ADDRESS_RANGE;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        if (timeline == null) {
+            return "";
+        }
+        switch (column) {
+            case 0:
+                String name = timeline.getNameFor(row);
+                return name == null ? String.format("0x%05x", row) : String.format("0x%05x (%s)", row, name);
+            case 1:
+                return values.get(timeline.get(row));
+            case 2:
+                return instructions.get(timeline.get(row));
+            default:
+                return "";
+        }
+    }
+}